@@ -1,7 +1,17 @@
+package expensetracker;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
 import java.util.regex.*;
 
 public class PersonalExpenseTracker 
@@ -11,355 +21,7483 @@ public class PersonalExpenseTracker
     {
         FIXED, VARIABLE, RECURRING
     }
-    // Class to represent individual expense entries
+    // Fixed-point money: amounts are longs in the currency's minor unit (cents for USD, yen for JPY).
+    // Arithmetic is overflow-checked and allocation-free; decimal text only appears at the edges.
+    static final class Money 
+    {
+        static final int DEFAULT_SCALE = 2;
+        // Largest exponent pow10 covers
+        static final int MAX_SCALE = 18;
+        private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 
+                100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 
+                100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L};
+        private static final Map<String, Integer> SCALES = new ConcurrentHashMap<>();
+        private Money() 
+        {
+        }
+        // Minor-unit digits for an ISO currency code; free-text currencies fall back to two
+        static int scaleOf(String currency) 
+        {
+            Integer scale = SCALES.get(currency);
+            if (scale == null) 
+            {
+                int digits;
+                try 
+                {
+                    digits = Currency.getInstance(currency.trim().toUpperCase(Locale.ROOT)).getDefaultFractionDigits();
+                } 
+                catch (IllegalArgumentException e) 
+                {
+                    digits = -1;
+                }
+                scale = digits < 0 ? DEFAULT_SCALE : digits;
+                SCALES.put(currency, scale);
+            }
+            return scale;
+        }
+        static long pow10(int exponent) 
+        {
+            return POWERS_OF_TEN[exponent];
+        }
+        // Rounds a decimal amount (as typed by the user) half-up to minor units
+        static long toMinor(double amount, int scale) 
+        {
+            double scaled = amount * POWERS_OF_TEN[scale];
+            if (Double.isNaN(scaled) || Math.abs(scaled) >= 0x1p63) 
+            {
+                throw new ArithmeticException("Amount out of range: " + amount);
+            }
+            return Math.round(scaled);
+        }
+        static double toDouble(long minor, int scale) 
+        {
+            return (double) minor / POWERS_OF_TEN[scale];
+        }
+        static long add(long a, long b) 
+        {
+            return Math.addExact(a, b);
+        }
+        static long subtract(long a, long b) 
+        {
+            return Math.subtractExact(a, b);
+        }
+        // Converts between minor-unit scales, rounding half-up when digits are dropped
+        static long rescale(long minor, int fromScale, int toScale) 
+        {
+            if (fromScale == toScale) 
+            {
+                return minor;
+            }
+            if (toScale > fromScale) 
+            {
+                return Math.multiplyExact(minor, POWERS_OF_TEN[toScale - fromScale]);
+            }
+            long divisor = POWERS_OF_TEN[fromScale - toScale];
+            long quotient = minor / divisor;
+            long remainder = minor % divisor;
+            if (Math.abs(remainder) * 2 >= divisor) 
+            {
+                quotient += Long.signum(minor);
+            }
+            return quotient;
+        }
+        static String format(long minor, int scale) 
+        {
+            return appendTo(new StringBuilder(24), minor, scale).toString();
+        }
+        // Appends the decimal form of a minor-unit amount without building intermediate strings
+        static StringBuilder appendTo(StringBuilder text, long minor, int scale) 
+        {
+            if (scale == 0) 
+            {
+                return text.append(minor);
+            }
+            if (minor < 0) 
+            {
+                text.append('-');
+            }
+            long units = Math.abs(minor / POWERS_OF_TEN[scale]);
+            long fraction = Math.abs(minor % POWERS_OF_TEN[scale]);
+            text.append(units).append('.');
+            for (int digit = scale - 1; digit > 0 && fraction < POWERS_OF_TEN[digit]; digit--) 
+            {
+                text.append('0');
+            }
+            return text.append(fraction);
+        }
+    }
+    // Shared codec for yyyy-MM-dd dates and LocalDateTime.toString timestamps, held as epoch days and
+    // epoch nanoseconds. Text is parsed in place and formatted by appending digits, so neither allocates;
+    // dates are validated once when they come in and compared as ints from then on.
+    static final class DateCodec 
+    {
+        static final int INVALID = Integer.MIN_VALUE;
+        private DateCodec() 
+        {
+        }
+        // Parses yyyy-MM-dd into an epoch day, or INVALID if the date is malformed or does not exist
+        static int parse(CharSequence text) 
+        {
+            if (text == null || text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-') 
+            {
+                return INVALID;
+            }
+            return checked(digits(text, 0, 4), digits(text, 5, 2), digits(text, 8, 2));
+        }
+        // Same as parse(CharSequence) over raw ASCII bytes, for the bulk loader and binary formats
+        static int parse(byte[] bytes, int start, int end) 
+        {
+            if (end - start != 10 || bytes[start + 4] != '-' || bytes[start + 7] != '-') 
+            {
+                return INVALID;
+            }
+            return checked(digits(bytes, start, 4), digits(bytes, start + 5, 2), digits(bytes, start + 8, 2));
+        }
+        private static int checked(int year, int month, int day) 
+        {
+            if (year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) 
+            {
+                return INVALID;
+            }
+            return epochDay(year, month, day);
+        }
+        // Parses the LocalDateTime.toString() form written by saveToFile, or Long.MIN_VALUE if malformed
+        static long parseTimestamp(byte[] bytes, int start, int end) 
+        {
+            int length = end - start;
+            if (length < 16 || bytes[start + 10] != 'T' || bytes[start + 13] != ':') 
+            {
+                return Long.MIN_VALUE;
+            }
+            int epochDay = parse(bytes, start, start + 10);
+            int hour = digits(bytes, start + 11, 2);
+            int minute = digits(bytes, start + 14, 2);
+            int second = 0;
+            long nano = 0;
+            if (length > 16) 
+            {
+                if (length < 19 || bytes[start + 16] != ':') 
+                {
+                    return Long.MIN_VALUE;
+                }
+                second = digits(bytes, start + 17, 2);
+                if (length > 19) 
+                {
+                    int fraction = length - 20;
+                    if (bytes[start + 19] != '.' || fraction < 1 || fraction > 9) 
+                    {
+                        return Long.MIN_VALUE;
+                    }
+                    int value = digits(bytes, start + 20, fraction);
+                    if (value < 0) 
+                    {
+                        return Long.MIN_VALUE;
+                    }
+                    nano = value;
+                    for (int i = fraction; i < 9; i++) 
+                    {
+                        nano *= 10;
+                    }
+                }
+            }
+            if (epochDay == INVALID || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) 
+            {
+                return Long.MIN_VALUE;
+            }
+            long seconds = epochDay * 86_400L + hour * 3_600L + minute * 60L + second;
+            return seconds * 1_000_000_000L + nano;
+        }
+        static String format(int epochDay) 
+        {
+            return append(new StringBuilder(10), epochDay).toString();
+        }
+        static String formatTimestamp(long nanos) 
+        {
+            return appendTimestamp(new StringBuilder(29), nanos).toString();
+        }
+        // yyyy-MM-dd, as LocalDate.toString prints it for four-digit years; one civil-from-days pass
+        static StringBuilder append(StringBuilder text, int epochDay) 
+        {
+            int z = epochDay + 719468;
+            int era = Math.floorDiv(z, 146097);
+            int dayOfEra = z - era * 146097;
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int monthIndex = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+            int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+            int year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) 
+            {
+                return text.append(LocalDate.ofEpochDay(epochDay));
+            }
+            twoDigits(twoDigits(text, year / 100), year % 100).append('-');
+            return twoDigits(twoDigits(text, month).append('-'), day);
+        }
+        // LocalDateTime.toString form: seconds only when non-zero, fraction in groups of three digits
+        static StringBuilder appendTimestamp(StringBuilder text, long nanos) 
+        {
+            long seconds = Math.floorDiv(nanos, 1_000_000_000L);
+            int nano = (int) Math.floorMod(nanos, 1_000_000_000L);
+            int secondOfDay = (int) Math.floorMod(seconds, 86_400L);
+            append(text, (int) Math.floorDiv(seconds, 86_400L)).append('T');
+            twoDigits(twoDigits(text, secondOfDay / 3600).append(':'), secondOfDay / 60 % 60);
+            if (secondOfDay % 60 != 0 || nano != 0) 
+            {
+                twoDigits(text.append(':'), secondOfDay % 60);
+                if (nano != 0) 
+                {
+                    text.append('.');
+                    if (nano % 1_000_000 == 0) 
+                    {
+                        padded(text, nano / 1_000_000, 3);
+                    }
+                    else if (nano % 1000 == 0) 
+                    {
+                        padded(text, nano / 1000, 6);
+                    }
+                    else 
+                    {
+                        padded(text, nano, 9);
+                    }
+                }
+            }
+            return text;
+        }
+        private static StringBuilder twoDigits(StringBuilder text, int value) 
+        {
+            return text.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
+        private static StringBuilder padded(StringBuilder text, int value, int width) 
+        {
+            for (int bound = (int) Money.pow10(width - 1); bound > 1 && value < bound; bound /= 10) 
+            {
+                text.append('0');
+            }
+            return text.append(value);
+        }
+        private static int digits(CharSequence text, int start, int count) 
+        {
+            int value = 0;
+            for (int i = start; i < start + count; i++) 
+            {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9) 
+                {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+        private static int digits(byte[] bytes, int start, int count) 
+        {
+            int value = 0;
+            for (int i = start; i < start + count; i++) 
+            {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) 
+                {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+        static boolean isLeapYear(int year) 
+        {
+            return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+        }
+        static int lengthOfMonth(int year, int month) 
+        {
+            if (month == 2) 
+            {
+                return isLeapYear(year) ? 29 : 28;
+            }
+            return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+        }
+        // Days since 1970-01-01 for a proleptic Gregorian date (civil-to-days algorithm)
+        static int epochDay(int year, int month, int day) 
+        {
+            int y = month <= 2 ? year - 1 : year;
+            int era = Math.floorDiv(y, 400);
+            int yearOfEra = y - era * 400;
+            int monthIndex = (month + 9) % 12;
+            int dayOfYear = (153 * monthIndex + 2) / 5 + day - 1;
+            int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+        // Month (1-12) of an epoch day, the inverse of epochDay without building a LocalDate
+        static int monthOf(int epochDay) 
+        {
+            int z = epochDay + 719468;
+            int era = Math.floorDiv(z, 146097);
+            int dayOfEra = z - era * 146097;
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int monthIndex = (5 * dayOfYear + 2) / 153;
+            return monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        }
+        // Year of an epoch day; the civil year starts in March here, so January and February roll over
+        static int yearOf(int epochDay) 
+        {
+            int z = epochDay + 719468;
+            int era = Math.floorDiv(z, 146097);
+            int dayOfEra = z - era * 146097;
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int monthIndex = (5 * dayOfYear + 2) / 153;
+            return era * 400 + yearOfEra + (monthIndex < 10 ? 0 : 1);
+        }
+    }
+    // Class to represent individual expense entries; amount is in minor units of the currency
     static class Expense 
     {
         String category;
-        double amount;
+        long amount;
         String date;
         ExpenseType type;
         String timestamp;
         String currency;
-        public Expense(String category, double amount, String date, ExpenseType type, String currency) 
+        public Expense(String category, long amount, String date, ExpenseType type, String currency) 
+        {
+            this(category, amount, date, type, currency, java.time.LocalDateTime.now().toString());
+        }
+        public Expense(String category, long amount, String date, ExpenseType type, String currency, String timestamp) 
         {
             this.category = category;
             this.amount = amount;
             this.date = date;
             this.type = type;
-            this.timestamp = java.time.LocalDateTime.now().toString();
+            this.timestamp = timestamp;
             this.currency = currency;
         }
-
-        @Override
-        public String toString() 
+
+        @Override
+        public String toString() 
+        {
+            return "Category: " + category + ", Amount: " + currency + Money.format(amount, Money.scaleOf(currency)) + ", Date: " + date + ", Type: " + type + ", Timestamp: " + timestamp;
+        }
+    }
+    // Dictionary that maps repeated strings (categories, currencies) to compact int ids.
+    // A case-insensitive dictionary keeps the first spelling it saw as the display value.
+    // Lookups are lock-free and safe to run concurrently with interning; new entries are
+    // published through the ids map after the value array holds them.
+    static class StringDictionary 
+    {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private volatile int size;
+        private final boolean ignoreCase;
+        public StringDictionary() 
+        {
+            this(false);
+        }
+        public StringDictionary(boolean ignoreCase) 
+        {
+            this.ignoreCase = ignoreCase;
+        }
+        public int intern(String value) 
+        {
+            String key = key(value);
+            Integer id = ids.get(key);
+            if (id != null) 
+            {
+                return id;
+            }
+            synchronized (this) 
+            {
+                id = ids.get(key);
+                if (id == null) 
+                {
+                    id = size;
+                    String[] current = values;
+                    if (id == current.length) 
+                    {
+                        current = Arrays.copyOf(current, current.length * 2);
+                    }
+                    current[id] = value;
+                    values = current;
+                    size = id + 1;
+                    ids.put(key, id);
+                }
+                return id;
+            }
+        }
+        public int idOf(String value) 
+        {
+            return ids.getOrDefault(key(value), -1);
+        }
+        private String key(String value) 
+        {
+            return ignoreCase ? value.toLowerCase(Locale.ROOT) : value;
+        }
+        public String valueOf(int id) 
+        {
+            return values[id];
+        }
+        public int size() 
+        {
+            return size;
+        }
+        public synchronized void clear() 
+        {
+            ids.clear();
+            values = new String[16];
+            size = 0;
+        }
+        // Replaces the contents with another dictionary's entries under the same ids
+        public synchronized void copyFrom(StringDictionary other) 
+        {
+            clear();
+            for (int id = 0; id < other.size(); id++) 
+            {
+                intern(other.valueOf(id));
+            }
+        }
+    }
+    // Column-oriented expense storage: one primitive array per field, rows addressed by index.
+    // Expense objects are only materialized on demand for display.
+    static class ExpenseStore 
+    {
+        private static final ExpenseType[] TYPES = ExpenseType.values();
+        // Minor units of the row's own currency
+        long[] amounts;
+        int[] epochDays;
+        byte[] types;
+        int[] categoryIds;
+        int[] currencyIds;
+        long[] timestamps;
+        // Amount in minor units of the tracker currency at the rate on the row's date; derived, so the
+        // tracker fills it when a row arrives and refreshes it when rates or the currency change
+        long[] reportingAmounts;
+        int size;
+        // Deleted rows stay in place as tombstones until compact(), so row ids stay stable
+        final BitSet removed = new BitSet();
+        int removedCount;
+        final StringDictionary categories = new StringDictionary(true);
+        final StringDictionary currencies = new StringDictionary();
+        public ExpenseStore() 
+        {
+            this(16);
+        }
+        public ExpenseStore(int capacity) 
+        {
+            amounts = new long[capacity];
+            epochDays = new int[capacity];
+            types = new byte[capacity];
+            categoryIds = new int[capacity];
+            currencyIds = new int[capacity];
+            timestamps = new long[capacity];
+            reportingAmounts = new long[capacity];
+        }
+        public int add(String category, long amount, int epochDay, ExpenseType type, String currency, long timestamp) 
+        {
+            ensureCapacity(size + 1);
+            int row = size++;
+            amounts[row] = amount;
+            epochDays[row] = epochDay;
+            types[row] = (byte) type.ordinal();
+            categoryIds[row] = categories.intern(category);
+            currencyIds[row] = currencies.intern(currency);
+            timestamps[row] = timestamp;
+            return row;
+        }
+        // Appends a copy of another store's row, converted amount included; returns the new row id
+        public int addFrom(ExpenseStore source, int row) 
+        {
+            int copy = add(source.category(row), source.amounts[row], source.epochDays[row], source.type(row), source.currency(row), source.timestamps[row]);
+            reportingAmounts[copy] = source.reportingAmounts[row];
+            return copy;
+        }
+        // Gives back column capacity beyond the live rows plus the usual growth headroom, e.g. after sealing
+        public void trimToSize() 
+        {
+            int capacity = Math.max(size + (size >> 1) + 1, 16);
+            if (removedCount > 0 || capacity >= amounts.length) 
+            {
+                return;
+            }
+            amounts = Arrays.copyOf(amounts, capacity);
+            epochDays = Arrays.copyOf(epochDays, capacity);
+            types = Arrays.copyOf(types, capacity);
+            categoryIds = Arrays.copyOf(categoryIds, capacity);
+            currencyIds = Arrays.copyOf(currencyIds, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            reportingAmounts = Arrays.copyOf(reportingAmounts, capacity);
+        }
+        public void ensureCapacity(int capacity) 
+        {
+            if (capacity <= amounts.length) 
+            {
+                return;
+            }
+            int newCapacity = Math.max(capacity, amounts.length + (amounts.length >> 1) + 1);
+            amounts = Arrays.copyOf(amounts, newCapacity);
+            epochDays = Arrays.copyOf(epochDays, newCapacity);
+            types = Arrays.copyOf(types, newCapacity);
+            categoryIds = Arrays.copyOf(categoryIds, newCapacity);
+            currencyIds = Arrays.copyOf(currencyIds, newCapacity);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            reportingAmounts = Arrays.copyOf(reportingAmounts, newCapacity);
+        }
+        public void remove(int row) 
+        {
+            if (!removed.get(row)) 
+            {
+                removed.set(row);
+                removedCount++;
+            }
+        }
+        public boolean isRemoved(int row) 
+        {
+            return removedCount > 0 && removed.get(row);
+        }
+        // Worth compacting once tombstones make up a quarter of the rows, so the O(n) pass is amortized
+        public boolean needsCompaction() 
+        {
+            return removedCount >= 1024 && removedCount >= size >> 2;
+        }
+        // Squeezes out tombstones in one pass; row ids of the remaining rows change
+        public void compact() 
+        {
+            int next = 0;
+            for (int row = 0; row < size; row++) 
+            {
+                if (removed.get(row)) 
+                {
+                    continue;
+                }
+                if (next != row) 
+                {
+                    amounts[next] = amounts[row];
+                    epochDays[next] = epochDays[row];
+                    types[next] = types[row];
+                    categoryIds[next] = categoryIds[row];
+                    currencyIds[next] = currencyIds[row];
+                    timestamps[next] = timestamps[row];
+                    reportingAmounts[next] = reportingAmounts[row];
+                }
+                next++;
+            }
+            size = next;
+            removed.clear();
+            removedCount = 0;
+        }
+        // Heap held by the columns and the tombstone set, allocated capacity included
+        public long estimatedBytes() 
+        {
+            // 8 + 4 + 1 + 4 + 4 + 8 + 8 bytes per row slot across the seven columns
+            return 37L * amounts.length + removed.size() / 8;
+        }
+        // Copy holding only the live rows, in row order and in columns sized to them, for writers that must not disturb row ids
+        public ExpenseStore liveCopy() 
+        {
+            ExpenseStore copy = new ExpenseStore(Math.max(liveCount(), 1));
+            int live = 0;
+            for (int row = 0; row < size; row++) 
+            {
+                if (isRemoved(row)) 
+                {
+                    continue;
+                }
+                copy.amounts[live] = amounts[row];
+                copy.epochDays[live] = epochDays[row];
+                copy.types[live] = types[row];
+                copy.categoryIds[live] = categoryIds[row];
+                copy.currencyIds[live] = currencyIds[row];
+                copy.timestamps[live] = timestamps[row];
+                copy.reportingAmounts[live] = reportingAmounts[row];
+                live++;
+            }
+            copy.size = live;
+            copy.categories.copyFrom(categories);
+            copy.currencies.copyFrom(currencies);
+            return copy;
+        }
+        // Reorders the live rows by the given row comparator, dropping tombstones
+        public void sort(Comparator<Integer> order) 
+        {
+            Integer[] rows = new Integer[liveCount()];
+            for (int row = 0, i = 0; row < size; row++) 
+            {
+                if (!isRemoved(row)) 
+                {
+                    rows[i++] = row;
+                }
+            }
+            Arrays.sort(rows, order);
+            long[] newAmounts = new long[amounts.length];
+            int[] newEpochDays = new int[epochDays.length];
+            byte[] newTypes = new byte[types.length];
+            int[] newCategoryIds = new int[categoryIds.length];
+            int[] newCurrencyIds = new int[currencyIds.length];
+            long[] newTimestamps = new long[timestamps.length];
+            long[] newReportingAmounts = new long[reportingAmounts.length];
+            for (int i = 0; i < rows.length; i++) 
+            {
+                int row = rows[i];
+                newAmounts[i] = amounts[row];
+                newEpochDays[i] = epochDays[row];
+                newTypes[i] = types[row];
+                newCategoryIds[i] = categoryIds[row];
+                newCurrencyIds[i] = currencyIds[row];
+                newTimestamps[i] = timestamps[row];
+                newReportingAmounts[i] = reportingAmounts[row];
+            }
+            amounts = newAmounts;
+            epochDays = newEpochDays;
+            types = newTypes;
+            categoryIds = newCategoryIds;
+            currencyIds = newCurrencyIds;
+            timestamps = newTimestamps;
+            reportingAmounts = newReportingAmounts;
+            size = rows.length;
+            removed.clear();
+            removedCount = 0;
+        }
+        public ExpenseType type(int row) 
+        {
+            return TYPES[types[row]];
+        }
+        public String category(int row) 
+        {
+            return categories.valueOf(categoryIds[row]);
+        }
+        public String currency(int row) 
+        {
+            return currencies.valueOf(currencyIds[row]);
+        }
+        public int scale(int row) 
+        {
+            return Money.scaleOf(currency(row));
+        }
+        // Minor-unit scale of every currency id, for loops that must not hash per row
+        public int[] currencyScales() 
+        {
+            int[] scales = new int[currencies.size()];
+            for (int id = 0; id < scales.length; id++) 
+            {
+                scales[id] = Money.scaleOf(currencies.valueOf(id));
+            }
+            return scales;
+        }
+        public String date(int row) 
+        {
+            return DateCodec.format(epochDays[row]);
+        }
+        public String timestamp(int row) 
+        {
+            return decodeTimestamp(timestamps[row]);
+        }
+        public Expense get(int row) 
+        {
+            return new Expense(category(row), amounts[row], date(row), type(row), currency(row), timestamp(row));
+        }
+        // Upper bound of row ids, tombstones included; loops over rows skip isRemoved rows
+        public int size() 
+        {
+            return size;
+        }
+        public int liveCount() 
+        {
+            return size - removedCount;
+        }
+        public boolean isEmpty() 
+        {
+            return liveCount() == 0;
+        }
+        public void clear() 
+        {
+            size = 0;
+            removed.clear();
+            removedCount = 0;
+            categories.clear();
+            currencies.clear();
+        }
+        // Timestamps are kept as nanoseconds since 1970-01-01T00:00 (local time, no zone)
+        static long encodeTimestamp(java.time.LocalDateTime time) 
+        {
+            return time.toEpochSecond(java.time.ZoneOffset.UTC) * 1_000_000_000L + time.getNano();
+        }
+        static String decodeTimestamp(long nanos) 
+        {
+            return DateCodec.formatTimestamp(nanos);
+        }
+    }
+    // Growable list of primitive ints (row ids) without boxing
+    static class IntList 
+    {
+        int[] values;
+        int size;
+        public IntList() 
+        {
+            this(4);
+        }
+        public IntList(int capacity) 
+        {
+            values = new int[capacity];
+        }
+        public void add(int value) 
+        {
+            if (size == values.length) 
+            {
+                values = Arrays.copyOf(values, values.length + (values.length >> 1) + 1);
+            }
+            values[size++] = value;
+        }
+        public int get(int index) 
+        {
+            return values[index];
+        }
+        // Inserts into a list kept in ascending order
+        public void insertSorted(int value) 
+        {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            index = index < 0 ? -index - 1 : index;
+            add(value);
+            System.arraycopy(values, index, values, index + 1, size - index - 1);
+            values[index] = value;
+        }
+        public boolean removeValue(int value) 
+        {
+            for (int i = 0; i < size; i++) 
+            {
+                if (values[i] == value) 
+                {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+        public int size() 
+        {
+            return size;
+        }
+        public boolean isEmpty() 
+        {
+            return size == 0;
+        }
+        public void clear() 
+        {
+            size = 0;
+        }
+    }
+    // Cursor over the row ids of a sequence of buckets (DateIndex days, AmountIndex amounts), in bucket order
+    static class RowCursor implements PrimitiveIterator.OfInt 
+    {
+        private final Iterator<IntList> buckets;
+        private IntList bucket = new IntList(0);
+        private int index;
+        RowCursor(Iterator<IntList> buckets) 
+        {
+            this.buckets = buckets;
+        }
+        @Override
+        public boolean hasNext() 
+        {
+            while (index == bucket.size()) 
+            {
+                if (!buckets.hasNext()) 
+                {
+                    return false;
+                }
+                bucket = buckets.next();
+                index = 0;
+            }
+            return true;
+        }
+        @Override
+        public int nextInt() 
+        {
+            if (!hasNext()) 
+            {
+                throw new NoSuchElementException();
+            }
+            return bucket.get(index++);
+        }
+    }
+    // Sorted epoch-day index over store rows. Each day keeps its row ids and total, and a
+    // Fenwick tree over the day range gives prefix sums so a range total costs O(log n).
+    static class DateIndex 
+    {
+        static class DayBucket 
+        {
+            final IntList rows = new IntList();
+            long total;
+        }
+        private final TreeMap<Integer, DayBucket> days = new TreeMap<>();
+        private long[] tree = new long[1];
+        private int baseDay;
+        public void add(int day, int row, long amount) 
+        {
+            DayBucket bucket = days.get(day);
+            if (bucket == null) 
+            {
+                bucket = new DayBucket();
+                days.put(day, bucket);
+            }
+            bucket.rows.add(row);
+            bucket.total = Money.add(bucket.total, amount);
+            if (!covers(day)) 
+            {
+                resize(day);
+            }
+            else 
+            {
+                update(day, amount);
+            }
+        }
+        public int days() 
+        {
+            return days.size();
+        }
+        // Rough heap footprint with compressed oops: a tree map entry, boxed key, bucket and list per day,
+        // a row id per indexed row and the Fenwick tree
+        public long estimatedBytes(int rows) 
+        {
+            return 112L * days.size() + 4L * rows + 8L * tree.length;
+        }
+        // Applies an amount change to a row that stays in the index (e.g. a partial deduction)
+        public void adjust(int day, long delta) 
+        {
+            DayBucket bucket = days.get(day);
+            if (bucket != null) 
+            {
+                bucket.total = Money.add(bucket.total, delta);
+                update(day, delta);
+            }
+        }
+        // Removes a row whose remaining amount has already been adjusted out of the totals
+        public void remove(int day, int row) 
+        {
+            DayBucket bucket = days.get(day);
+            if (bucket != null && bucket.rows.removeValue(row) && bucket.rows.isEmpty()) 
+            {
+                update(day, -bucket.total);
+                days.remove(day);
+            }
+        }
+        // Sum of amounts for days in [startDay, endDay]
+        public long total(int startDay, int endDay) 
+        {
+            if (startDay > endDay || days.isEmpty()) 
+            {
+                return 0;
+            }
+            return Money.subtract(prefix(endDay), prefix(startDay - 1));
+        }
+        public IntList rowsOn(int day) 
+        {
+            DayBucket bucket = days.get(day);
+            return bucket == null ? new IntList(0) : bucket.rows;
+        }
+        // Day buckets in [startDay, endDay], in date order
+        public NavigableMap<Integer, DayBucket> range(int startDay, int endDay) 
+        {
+            if (startDay > endDay) 
+            {
+                return Collections.emptyNavigableMap();
+            }
+            return days.subMap(startDay, true, endDay, true);
+        }
+        // Row ids of days in [startDay, endDay] in date order, ties in row order
+        public RowCursor rows(int startDay, int endDay) 
+        {
+            Iterator<DayBucket> buckets = range(startDay, endDay).values().iterator();
+            return new RowCursor(new Iterator<IntList>() 
+            {
+                @Override
+                public boolean hasNext() 
+                {
+                    return buckets.hasNext();
+                }
+                @Override
+                public IntList next() 
+                {
+                    return buckets.next().rows;
+                }
+            });
+        }
+        // Number of rows on days in [startDay, endDay]; O(days in range)
+        public int count(int startDay, int endDay) 
+        {
+            int count = 0;
+            for (DayBucket bucket : range(startDay, endDay).values()) 
+            {
+                count += bucket.rows.size();
+            }
+            return count;
+        }
+        // Rebuilds from the store's tracker-currency amounts
+        public void rebuild(ExpenseStore store) 
+        {
+            days.clear();
+            for (int row = 0; row < store.size(); row++) 
+            {
+                if (store.isRemoved(row)) 
+                {
+                    continue;
+                }
+                int day = store.epochDays[row];
+                DayBucket bucket = days.get(day);
+                if (bucket == null) 
+                {
+                    bucket = new DayBucket();
+                    days.put(day, bucket);
+                }
+                bucket.rows.add(row);
+                bucket.total = Money.add(bucket.total, store.reportingAmounts[row]);
+            }
+            rebuildTree(days.isEmpty() ? 0 : days.firstKey(), days.isEmpty() ? 1 : days.lastKey() - days.firstKey() + 1);
+        }
+        public void clear() 
+        {
+            days.clear();
+            tree = new long[1];
+            baseDay = 0;
+        }
+        private boolean covers(int day) 
+        {
+            return day >= baseDay && day - baseDay < tree.length - 1;
+        }
+        private void resize(int day) 
+        {
+            int low = Math.min(day, days.firstKey());
+            int high = Math.max(day, days.lastKey());
+            int span = high - low + 1;
+            // Leave headroom on both sides so consecutive out-of-range days do not rebuild every time
+            int capacity = Math.max(span * 2, 64);
+            rebuildTree(low - (capacity - span) / 2, capacity);
+        }
+        private void rebuildTree(int newBaseDay, int capacity) 
+        {
+            baseDay = newBaseDay;
+            tree = new long[capacity + 1];
+            for (Map.Entry<Integer, DayBucket> entry : days.entrySet()) 
+            {
+                tree[entry.getKey() - baseDay + 1] = Money.add(tree[entry.getKey() - baseDay + 1], entry.getValue().total);
+            }
+            for (int i = 1; i < tree.length; i++) 
+            {
+                int parent = i + (i & -i);
+                if (parent < tree.length) 
+                {
+                    tree[parent] = Money.add(tree[parent], tree[i]);
+                }
+            }
+        }
+        private void update(int day, long delta) 
+        {
+            for (int i = day - baseDay + 1; i < tree.length; i += i & -i) 
+            {
+                tree[i] = Money.add(tree[i], delta);
+            }
+        }
+        private long prefix(int day) 
+        {
+            int i = Math.min(day - baseDay + 1, tree.length - 1);
+            long sum = 0;
+            for (; i > 0; i -= i & -i) 
+            {
+                sum = Money.add(sum, tree[i]);
+            }
+            return sum;
+        }
+    }
+    // Rows ordered by amount in minor units of the tracker currency, ties in row order. It is kept up to
+    // date as rows are added, deducted and removed, so sorted views and top-K never re-sort the store.
+    static class AmountIndex 
+    {
+        private final TreeMap<Long, IntList> amounts = new TreeMap<>();
+        public int keys() 
+        {
+            return amounts.size();
+        }
+        // Rough heap footprint with compressed oops: a tree map entry, boxed key and list per distinct amount,
+        // and a row id per indexed row
+        public long estimatedBytes(int rows) 
+        {
+            return 88L * amounts.size() + 4L * rows;
+        }
+        public void add(long amount, int row) 
+        {
+            IntList rows = amounts.get(amount);
+            if (rows == null) 
+            {
+                rows = new IntList(2);
+                amounts.put(amount, rows);
+            }
+            // Rows arrive in ascending id order except when a deduction moves one between amounts
+            if (rows.isEmpty() || rows.get(rows.size() - 1) < row) 
+            {
+                rows.add(row);
+            }
+            else 
+            {
+                rows.insertSorted(row);
+            }
+        }
+        public void remove(long amount, int row) 
+        {
+            IntList rows = amounts.get(amount);
+            if (rows != null && rows.removeValue(row) && rows.isEmpty()) 
+            {
+                amounts.remove(amount);
+            }
+        }
+        public void move(long oldAmount, long newAmount, int row) 
+        {
+            if (oldAmount != newAmount) 
+            {
+                remove(oldAmount, row);
+                add(newAmount, row);
+            }
+        }
+        // Row ids from the smallest amount up, or from the largest down
+        public RowCursor rows(boolean descending) 
+        {
+            return new RowCursor((descending ? amounts.descendingMap() : amounts).values().iterator());
+        }
+        public void rebuild(ExpenseStore store) 
+        {
+            amounts.clear();
+            for (int row = 0; row < store.size(); row++) 
+            {
+                if (!store.isRemoved(row)) 
+                {
+                    add(store.reportingAmounts[row], row);
+                }
+            }
+        }
+        public void clear() 
+        {
+            amounts.clear();
+        }
+    }
+    // Inverted index from category id to the row ids filed under that category, in row order.
+    // Each posting list carries a max tree over how much every row can still cover, so the first
+    // row able to absorb a deduction is found in O(log n). Removed rows stay listed until rebuild
+    // but their leaves are EMPTY.
+    static class CategoryIndex 
+    {
+        static final long EMPTY = Long.MIN_VALUE;
+        static class Posting 
+        {
+            final IntList rows = new IntList();
+            // Implicit binary tree: leaves at capacity + position, each inner node the max of its children
+            long[] tree = newTree(4);
+            int capacity = 4;
+        }
+        private final ArrayList<Posting> postings = new ArrayList<>();
+        // Coverable is in minor units of the tracker currency (see RateTable.Rate.coverable)
+        public void add(int categoryId, int row, long coverable) 
+        {
+            while (postings.size() <= categoryId) 
+            {
+                postings.add(new Posting());
+            }
+            Posting posting = postings.get(categoryId);
+            int position = posting.rows.size();
+            posting.rows.add(row);
+            if (position == posting.capacity) 
+            {
+                grow(posting);
+            }
+            set(posting, position, coverable);
+        }
+        // Position in the category's posting list of the first row whose coverable amount reaches amount, or -1
+        public int firstCovering(int categoryId, long amount) 
+        {
+            if (categoryId < 0 || categoryId >= postings.size()) 
+            {
+                return -1;
+            }
+            Posting posting = postings.get(categoryId);
+            long[] tree = posting.tree;
+            if (tree[1] < amount) 
+            {
+                return -1;
+            }
+            int node = 1;
+            while (node < posting.capacity) 
+            {
+                node = tree[2 * node] >= amount ? 2 * node : 2 * node + 1;
+            }
+            return node - posting.capacity;
+        }
+        public int rowAt(int categoryId, int position) 
+        {
+            return postings.get(categoryId).rows.get(position);
+        }
+        // Records a row's new coverable amount, or EMPTY once the row is removed
+        public void update(int categoryId, int position, long coverable) 
+        {
+            set(postings.get(categoryId), position, coverable);
+        }
+        // Heap held by the posting lists and their max trees
+        public long estimatedBytes() 
+        {
+            long bytes = 0;
+            for (Posting posting : postings) 
+            {
+                bytes += 48 + 4L * posting.rows.values.length + 8L * posting.tree.length;
+            }
+            return bytes;
+        }
+        // Row ids in row order; may include removed rows, which callers skip via ExpenseStore.isRemoved
+        public IntList rows(int categoryId) 
+        {
+            return categoryId >= 0 && categoryId < postings.size() ? postings.get(categoryId).rows : new IntList(0);
+        }
+        public void rebuild(ExpenseStore store, RateTable rates) 
+        {
+            postings.clear();
+            for (int row = 0; row < store.size(); row++) 
+            {
+                if (!store.isRemoved(row)) 
+                {
+                    add(store.categoryIds[row], row, rates.rate(store.currency(row), store.epochDays[row]).coverable(store.amounts[row]));
+                }
+            }
+        }
+        public void clear() 
+        {
+            postings.clear();
+        }
+        private static long[] newTree(int capacity) 
+        {
+            long[] tree = new long[2 * capacity];
+            Arrays.fill(tree, EMPTY);
+            return tree;
+        }
+        private static void grow(Posting posting) 
+        {
+            int capacity = posting.capacity * 2;
+            long[] tree = newTree(capacity);
+            System.arraycopy(posting.tree, posting.capacity, tree, capacity, posting.capacity);
+            for (int node = capacity - 1; node > 0; node--) 
+            {
+                tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+            }
+            posting.tree = tree;
+            posting.capacity = capacity;
+        }
+        private static void set(Posting posting, int position, long value) 
+        {
+            long[] tree = posting.tree;
+            int node = posting.capacity + position;
+            tree[node] = value;
+            // Once a node keeps its max, so do all its ancestors
+            for (node >>= 1; node > 0; node >>= 1) 
+            {
+                long max = Math.max(tree[2 * node], tree[2 * node + 1]);
+                if (tree[node] == max) 
+                {
+                    break;
+                }
+                tree[node] = max;
+            }
+        }
+    }
+    // Rollup cube over (year, month, day, category, type). Every year and month keeps sum, count, min
+    // and max for the whole period and per category and type, so period reports read O(groups)
+    // aggregates instead of scanning rows. Days keep their total and one cell per (category, type),
+    // which is all a month needs to recompute its extremes. Amounts are minor units of the tracker currency.
+    static class RollupCube 
+    {
+        static final int TYPES = ExpenseType.values().length;
+        static final int ANY = -1;
+        static class Aggregate 
+        {
+            long sum;
+            int count;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            void include(long amount) 
+            {
+                sum = Money.add(sum, amount);
+                count++;
+                min = Math.min(min, amount);
+                max = Math.max(max, amount);
+            }
+            void merge(Aggregate other) 
+            {
+                sum = Money.add(sum, other.sum);
+                count += other.count;
+                min = Math.min(min, other.min);
+                max = Math.max(max, other.max);
+            }
+        }
+        // Amounts of one (day, category, type) cell, kept so min and max stay exact when one shrinks
+        static class Cell 
+        {
+            long[] amounts = new long[2];
+            int count;
+            void add(long amount) 
+            {
+                if (count == amounts.length) 
+                {
+                    amounts = Arrays.copyOf(amounts, count * 2);
+                }
+                amounts[count++] = amount;
+            }
+            boolean replace(long oldAmount, long newAmount, boolean remove) 
+            {
+                for (int i = 0; i < count; i++) 
+                {
+                    if (amounts[i] == oldAmount) 
+                    {
+                        if (remove) 
+                        {
+                            amounts[i] = amounts[--count];
+                        }
+                        else 
+                        {
+                            amounts[i] = newAmount;
+                        }
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+        // A year (children keyed by month 1-12), a month (children keyed by epoch day) or a day (cells)
+        static class Period 
+        {
+            final Aggregate total = new Aggregate();
+            final HashMap<Integer, Aggregate> byCategory = new HashMap<>();
+            final Aggregate[] byType = new Aggregate[TYPES];
+            final TreeMap<Integer, Period> children = new TreeMap<>();
+            // Indexed by categoryId * TYPES + type ordinal; only days have cells
+            Cell[] cells;
+            // Days with archived rows: their aggregates, indexed like cells. Sealed rows never change,
+            // so a plain aggregate per (category, type) is enough
+            Aggregate[] sealed;
+            Aggregate select(int categoryId, int type) 
+            {
+                return categoryId != ANY ? byCategory.get(categoryId) : type != ANY ? byType[type] : total;
+            }
+        }
+        private final TreeMap<Integer, Period> years = new TreeMap<>();
+        // Last day holding sealed aggregates, so reports over later ranges skip looking for them
+        private int sealedThrough = Integer.MIN_VALUE;
+        public void add(int epochDay, int categoryId, ExpenseType type, long amount) 
+        {
+            Period year = years.computeIfAbsent(DateCodec.yearOf(epochDay), key -> new Period());
+            Period month = year.children.computeIfAbsent(DateCodec.monthOf(epochDay), key -> new Period());
+            Period day = month.children.computeIfAbsent(epochDay, key -> new Period());
+            int key = categoryId * TYPES + type.ordinal();
+            if (day.cells == null) 
+            {
+                day.cells = new Cell[Math.max(key + 1, TYPES * 8)];
+            }
+            else if (day.cells.length <= key) 
+            {
+                day.cells = Arrays.copyOf(day.cells, Math.max(key + 1, day.cells.length * 2));
+            }
+            if (day.cells[key] == null) 
+            {
+                day.cells[key] = new Cell();
+            }
+            day.cells[key].add(amount);
+            day.total.include(amount);
+            include(month, categoryId, type.ordinal(), amount);
+            include(year, categoryId, type.ordinal(), amount);
+        }
+        // Folds in the aggregate of archived rows of one (day, category, type)
+        public void addSealed(int epochDay, int categoryId, int type, Aggregate aggregate) 
+        {
+            Period year = years.computeIfAbsent(DateCodec.yearOf(epochDay), key -> new Period());
+            Period month = year.children.computeIfAbsent(DateCodec.monthOf(epochDay), key -> new Period());
+            Period day = month.children.computeIfAbsent(epochDay, key -> new Period());
+            int key = categoryId * TYPES + type;
+            if (day.sealed == null) 
+            {
+                day.sealed = new Aggregate[Math.max(key + 1, TYPES * 8)];
+            }
+            else if (day.sealed.length <= key) 
+            {
+                day.sealed = Arrays.copyOf(day.sealed, Math.max(key + 1, day.sealed.length * 2));
+            }
+            if (day.sealed[key] == null) 
+            {
+                day.sealed[key] = new Aggregate();
+            }
+            day.sealed[key].merge(aggregate);
+            day.total.merge(aggregate);
+            for (Period period : new Period[] {month, year}) 
+            {
+                period.total.merge(aggregate);
+                period.byCategory.computeIfAbsent(categoryId, id -> new Aggregate()).merge(aggregate);
+                if (period.byType[type] == null) 
+                {
+                    period.byType[type] = new Aggregate();
+                }
+                period.byType[type].merge(aggregate);
+            }
+            sealedThrough = Math.max(sealedThrough, epochDay);
+        }
+        // Adds the sealed aggregates of days in [startDay, endDay] to a summary of the hot rows;
+        // categoryId is ANY or the one category to keep
+        public void foldSealed(ReportEngine.Summary summary, int startDay, int endDay, int categoryId, StringDictionary categories) 
+        {
+            if (startDay > sealedThrough) 
+            {
+                return;
+            }
+            ExpenseType[] types = ExpenseType.values();
+            for (Period year : years.subMap(DateCodec.yearOf(startDay), true, DateCodec.yearOf(endDay), true).values()) 
+            {
+                for (Period month : year.children.values()) 
+                {
+                    for (Period day : month.children.subMap(startDay, true, endDay, true).values()) 
+                    {
+                        if (day.sealed == null) 
+                        {
+                            continue;
+                        }
+                        for (int key = 0; key < day.sealed.length; key++) 
+                        {
+                            Aggregate cell = day.sealed[key];
+                            if (cell == null || (categoryId != ANY && key / TYPES != categoryId)) 
+                            {
+                                continue;
+                            }
+                            summary.total.merge(cell);
+                            summary.byCategory.computeIfAbsent(categories.valueOf(key / TYPES), name -> new Aggregate()).merge(cell);
+                            summary.byType.computeIfAbsent(types[key % TYPES], type -> new Aggregate()).merge(cell);
+                        }
+                    }
+                }
+            }
+        }
+        // Adds every row and sealed aggregate dated in [startDay, endDay] to an empty summary without touching
+        // the store: whole years and months fold their own aggregates, only partial months go day by day.
+        // byCurrency is left empty, since the cube holds tracker-currency amounts only
+        public void fold(ReportEngine.Summary summary, int startDay, int endDay, StringDictionary categories) 
+        {
+            TreeMap<Integer, Aggregate> byCategory = new TreeMap<>();
+            Aggregate[] byType = new Aggregate[TYPES];
+            for (Map.Entry<Integer, Period> year : years.subMap(DateCodec.yearOf(startDay), true, DateCodec.yearOf(endDay), true).entrySet()) 
+            {
+                if (startDay <= DateCodec.epochDay(year.getKey(), 1, 1) && DateCodec.epochDay(year.getKey(), 12, 31) <= endDay) 
+                {
+                    fold(year.getValue(), summary.total, byCategory, byType);
+                    continue;
+                }
+                for (Map.Entry<Integer, Period> month : year.getValue().children.entrySet()) 
+                {
+                    int firstDay = DateCodec.epochDay(year.getKey(), month.getKey(), 1);
+                    int lastDay = firstDay + DateCodec.lengthOfMonth(year.getKey(), month.getKey()) - 1;
+                    if (lastDay < startDay || firstDay > endDay) 
+                    {
+                        continue;
+                    }
+                    if (startDay <= firstDay && lastDay <= endDay) 
+                    {
+                        fold(month.getValue(), summary.total, byCategory, byType);
+                        continue;
+                    }
+                    for (Period day : month.getValue().children.subMap(startDay, true, endDay, true).values()) 
+                    {
+                        foldDay(day, summary.total, byCategory, byType);
+                    }
+                }
+            }
+            for (Map.Entry<Integer, Aggregate> entry : byCategory.entrySet()) 
+            {
+                summary.byCategory.put(categories.valueOf(entry.getKey()), entry.getValue());
+            }
+            ExpenseType[] types = ExpenseType.values();
+            for (int type = 0; type < TYPES; type++) 
+            {
+                if (byType[type] != null) 
+                {
+                    summary.byType.put(types[type], byType[type]);
+                }
+            }
+        }
+        private static void fold(Period period, Aggregate total, TreeMap<Integer, Aggregate> byCategory, Aggregate[] byType) 
+        {
+            total.merge(period.total);
+            for (Map.Entry<Integer, Aggregate> entry : period.byCategory.entrySet()) 
+            {
+                byCategory.computeIfAbsent(entry.getKey(), id -> new Aggregate()).merge(entry.getValue());
+            }
+            for (int type = 0; type < TYPES; type++) 
+            {
+                if (period.byType[type] != null) 
+                {
+                    foldInto(byType, type, period.byType[type]);
+                }
+            }
+        }
+        // Days keep no per-category aggregates, so their cells and sealed aggregates are folded instead
+        private static void foldDay(Period day, Aggregate total, TreeMap<Integer, Aggregate> byCategory, Aggregate[] byType) 
+        {
+            total.merge(day.total);
+            for (int key = 0; day.cells != null && key < day.cells.length; key++) 
+            {
+                Cell cell = day.cells[key];
+                if (cell == null) 
+                {
+                    continue;
+                }
+                Aggregate aggregate = new Aggregate();
+                for (int i = 0; i < cell.count; i++) 
+                {
+                    aggregate.include(cell.amounts[i]);
+                }
+                byCategory.computeIfAbsent(key / TYPES, id -> new Aggregate()).merge(aggregate);
+                foldInto(byType, key % TYPES, aggregate);
+            }
+            for (int key = 0; day.sealed != null && key < day.sealed.length; key++) 
+            {
+                if (day.sealed[key] != null) 
+                {
+                    byCategory.computeIfAbsent(key / TYPES, id -> new Aggregate()).merge(day.sealed[key]);
+                    foldInto(byType, key % TYPES, day.sealed[key]);
+                }
+            }
+        }
+        private static void foldInto(Aggregate[] byType, int type, Aggregate aggregate) 
+        {
+            if (byType[type] == null) 
+            {
+                byType[type] = new Aggregate();
+            }
+            byType[type].merge(aggregate);
+        }
+        // Changes one amount of a row that stays in the cube (e.g. a partial deduction)
+        public void adjust(int epochDay, int categoryId, ExpenseType type, long oldAmount, long newAmount) 
+        {
+            change(epochDay, categoryId, type.ordinal(), oldAmount, newAmount, false);
+        }
+        public void remove(int epochDay, int categoryId, ExpenseType type, long amount) 
+        {
+            change(epochDay, categoryId, type.ordinal(), amount, 0, true);
+        }
+        public Period year(int year) 
+        {
+            return years.get(year);
+        }
+        public Period month(int year, int month) 
+        {
+            Period period = years.get(year);
+            return period == null ? null : period.children.get(month);
+        }
+        public NavigableMap<Integer, Period> years() 
+        {
+            return Collections.unmodifiableNavigableMap(years);
+        }
+        // Adds rows [firstRow, size) of the store at their tracker-currency amounts
+        public void addRows(ExpenseStore store, int firstRow) 
+        {
+            ExpenseType[] types = ExpenseType.values();
+            for (int row = firstRow; row < store.size(); row++) 
+            {
+                if (store.isRemoved(row)) 
+                {
+                    continue;
+                }
+                add(store.epochDays[row], store.categoryIds[row], types[store.types[row]], store.reportingAmounts[row]);
+            }
+        }
+        // Sealed aggregates go too; the tracker adds them back from the archive
+        public void rebuild(ExpenseStore store) 
+        {
+            clear();
+            addRows(store, 0);
+        }
+        public void clear() 
+        {
+            years.clear();
+            sealedThrough = Integer.MIN_VALUE;
+        }
+        private static void include(Period period, int categoryId, int type, long amount) 
+        {
+            period.total.include(amount);
+            period.byCategory.computeIfAbsent(categoryId, key -> new Aggregate()).include(amount);
+            if (period.byType[type] == null) 
+            {
+                period.byType[type] = new Aggregate();
+            }
+            period.byType[type].include(amount);
+        }
+        private void change(int epochDay, int categoryId, int type, long oldAmount, long newAmount, boolean remove) 
+        {
+            int yearKey = DateCodec.yearOf(epochDay);
+            int monthKey = DateCodec.monthOf(epochDay);
+            Period year = years.get(yearKey);
+            Period month = year == null ? null : year.children.get(monthKey);
+            Period day = month == null ? null : month.children.get(epochDay);
+            int key = categoryId * TYPES + type;
+            Cell cell = day == null || day.cells == null || key >= day.cells.length ? null : day.cells[key];
+            if (cell == null || !cell.replace(oldAmount, newAmount, remove)) 
+            {
+                return;
+            }
+            if (cell.count == 0) 
+            {
+                day.cells[key] = null;
+            }
+            // Bottom-up, so a level that has to recompute min or max reads already updated children
+            change(day, day.total, ANY, ANY, oldAmount, newAmount, remove);
+            for (Period period : new Period[] {month, year}) 
+            {
+                change(period, period.total, ANY, ANY, oldAmount, newAmount, remove);
+                change(period, period.byCategory.get(categoryId), categoryId, ANY, oldAmount, newAmount, remove);
+                change(period, period.byType[type], ANY, type, oldAmount, newAmount, remove);
+                if (period.byCategory.get(categoryId).count == 0) 
+                {
+                    period.byCategory.remove(categoryId);
+                }
+                if (period.byType[type].count == 0) 
+                {
+                    period.byType[type] = null;
+                }
+            }
+            if (day.total.count == 0) 
+            {
+                month.children.remove(epochDay);
+            }
+            if (month.total.count == 0) 
+            {
+                year.children.remove(monthKey);
+            }
+            if (year.total.count == 0) 
+            {
+                years.remove(yearKey);
+            }
+        }
+        private static void change(Period period, Aggregate aggregate, int categoryId, int type, long oldAmount, long newAmount, boolean remove) 
+        {
+            aggregate.sum = Money.add(aggregate.sum, Money.subtract(newAmount, oldAmount));
+            if (remove) 
+            {
+                aggregate.count--;
+            }
+            if (oldAmount == aggregate.min || oldAmount == aggregate.max) 
+            {
+                refresh(period, aggregate, categoryId, type);
+            }
+            else if (!remove) 
+            {
+                aggregate.min = Math.min(aggregate.min, newAmount);
+                aggregate.max = Math.max(aggregate.max, newAmount);
+            }
+        }
+        // Recomputes min and max of one aggregate from the level below
+        private static void refresh(Period period, Aggregate aggregate, int categoryId, int type) 
+        {
+            aggregate.min = Long.MAX_VALUE;
+            aggregate.max = Long.MIN_VALUE;
+            if (period.cells != null || period.sealed != null) 
+            {
+                widen(aggregate, period, categoryId, type);
+                return;
+            }
+            for (Period child : period.children.values()) 
+            {
+                if (child.cells != null || child.sealed != null) 
+                {
+                    widen(aggregate, child, categoryId, type);
+                    continue;
+                }
+                Aggregate part = child.select(categoryId, type);
+                if (part != null) 
+                {
+                    aggregate.min = Math.min(aggregate.min, part.min);
+                    aggregate.max = Math.max(aggregate.max, part.max);
+                }
+            }
+        }
+        // Widens to the extremes of one day's matching cells and sealed aggregates
+        private static void widen(Aggregate aggregate, Period day, int categoryId, int type) 
+        {
+            for (int key = 0; day.cells != null && key < day.cells.length; key++) 
+            {
+                Cell cell = day.cells[key];
+                if (cell != null && (categoryId == ANY || key / TYPES == categoryId) && (type == ANY || key % TYPES == type)) 
+                {
+                    for (int i = 0; i < cell.count; i++) 
+                    {
+                        aggregate.min = Math.min(aggregate.min, cell.amounts[i]);
+                        aggregate.max = Math.max(aggregate.max, cell.amounts[i]);
+                    }
+                }
+            }
+            for (int key = 0; day.sealed != null && key < day.sealed.length; key++) 
+            {
+                Aggregate sealed = day.sealed[key];
+                if (sealed != null && (categoryId == ANY || key / TYPES == categoryId) && (type == ANY || key % TYPES == type)) 
+                {
+                    aggregate.min = Math.min(aggregate.min, sealed.min);
+                    aggregate.max = Math.max(aggregate.max, sealed.max);
+                }
+            }
+        }
+    }
+    // Ad-hoc aggregation over the store's columns, for ranges and filters the rollup cube does not cover.
+    // Rows are cut into chunks that fork-join workers fold into mergeable Partials; below the threshold
+    // (and when there is a single worker) the same fold runs on the calling thread. Callers hold the
+    // tracker's read lock for the whole call, so the columns do not change underneath the workers.
+    static class ReportEngine 
+    {
+        static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+        // Smallest chunk worth handing to another worker
+        static final int MIN_CHUNK = 1 << 13;
+        // What a report over some rows comes to; amounts are in minor units of the tracker currency
+        // except byCurrency, which stays in each currency's own minor units
+        static class Summary 
+        {
+            int startDay;
+            int endDay;
+            final RollupCube.Aggregate total = new RollupCube.Aggregate();
+            final Map<String, RollupCube.Aggregate> byCategory = new LinkedHashMap<>();
+            final EnumMap<ExpenseType, RollupCube.Aggregate> byType = new EnumMap<>(ExpenseType.class);
+            final TreeMap<String, Long> byCurrency = new TreeMap<>();
+            // Recurring occurrences in the range; filled in by the tracker, not counted in total
+            final Map<String, Long> recurringByCategory = new LinkedHashMap<>();
+            long recurringTotal;
+            // Rows plus recurring occurrences
+            public long grandTotal() 
+            {
+                return Money.add(total.sum, recurringTotal);
+            }
+        }
+        // Per-chunk accumulator, indexed by the store's category, type and currency ids
+        static class Partial 
+        {
+            final RollupCube.Aggregate total = new RollupCube.Aggregate();
+            final RollupCube.Aggregate[] byCategory;
+            final RollupCube.Aggregate[] byType = new RollupCube.Aggregate[RollupCube.TYPES];
+            final long[] byCurrency;
+            Partial(int categories, int currencies) 
+            {
+                byCategory = new RollupCube.Aggregate[categories];
+                byCurrency = new long[currencies];
+            }
+            void include(ExpenseStore store, int row) 
+            {
+                long amount = store.reportingAmounts[row];
+                total.include(amount);
+                int categoryId = store.categoryIds[row];
+                if (byCategory[categoryId] == null) 
+                {
+                    byCategory[categoryId] = new RollupCube.Aggregate();
+                }
+                byCategory[categoryId].include(amount);
+                int type = store.types[row];
+                if (byType[type] == null) 
+                {
+                    byType[type] = new RollupCube.Aggregate();
+                }
+                byType[type].include(amount);
+                byCurrency[store.currencyIds[row]] = Money.add(byCurrency[store.currencyIds[row]], store.amounts[row]);
+            }
+            Partial merge(Partial other) 
+            {
+                total.merge(other.total);
+                merge(byCategory, other.byCategory);
+                merge(byType, other.byType);
+                for (int i = 0; i < byCurrency.length; i++) 
+                {
+                    byCurrency[i] = Money.add(byCurrency[i], other.byCurrency[i]);
+                }
+                return this;
+            }
+            private static void merge(RollupCube.Aggregate[] into, RollupCube.Aggregate[] from) 
+            {
+                for (int i = 0; i < into.length; i++) 
+                {
+                    if (from[i] == null) 
+                    {
+                        continue;
+                    }
+                    if (into[i] == null) 
+                    {
+                        into[i] = from[i];
+                    }
+                    else 
+                    {
+                        into[i].merge(from[i]);
+                    }
+                }
+            }
+        }
+        // Folds positions [from, to) of either the store itself (rows == null) or a list of row ids,
+        // keeping live rows dated in [startDay, endDay] and, unless ANY, of one category
+        private static class ChunkTask extends RecursiveTask<Partial> 
+        {
+            private static final long serialVersionUID = 1L;
+            private final ExpenseStore store;
+            private final int[] rows;
+            private final int from;
+            private final int to;
+            private final int startDay;
+            private final int endDay;
+            private final int categoryId;
+            private final int chunk;
+            // Dictionary sizes read once per report: concurrent adds intern new names under the same read lock,
+            // so sizes read by each leaf could differ and leave partials that do not line up for merge
+            private final int categories;
+            private final int currencies;
+            ChunkTask(ExpenseStore store, int[] rows, int from, int to, int startDay, int endDay, int categoryId, int chunk, int categories, int currencies) 
+            {
+                this.store = store;
+                this.rows = rows;
+                this.from = from;
+                this.to = to;
+                this.startDay = startDay;
+                this.endDay = endDay;
+                this.categoryId = categoryId;
+                this.chunk = chunk;
+                this.categories = categories;
+                this.currencies = currencies;
+            }
+            @Override
+            protected Partial compute() 
+            {
+                if (to - from <= chunk) 
+                {
+                    return fold();
+                }
+                int middle = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(store, rows, from, middle, startDay, endDay, categoryId, chunk, categories, currencies);
+                ChunkTask right = new ChunkTask(store, rows, middle, to, startDay, endDay, categoryId, chunk, categories, currencies);
+                left.fork();
+                Partial result = right.compute();
+                return left.join().merge(result);
+            }
+            Partial fold() 
+            {
+                Partial partial = new Partial(categories, currencies);
+                int[] epochDays = store.epochDays;
+                int[] categoryIds = store.categoryIds;
+                for (int i = from; i < to; i++) 
+                {
+                    int row = rows == null ? i : rows[i];
+                    int day = epochDays[row];
+                    if (day < startDay || day > endDay || (categoryId != RollupCube.ANY && categoryIds[row] != categoryId) || store.isRemoved(row)) 
+                    {
+                        continue;
+                    }
+                    partial.include(store, row);
+                }
+                return partial;
+            }
+        }
+        private final ForkJoinPool pool;
+        private volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+        public ReportEngine() 
+        {
+            this(ForkJoinPool.commonPool());
+        }
+        public ReportEngine(ForkJoinPool pool) 
+        {
+            this.pool = pool;
+        }
+        // Fewest rows to visit before a report is split across the pool; Integer.MAX_VALUE keeps every report sequential
+        public void setParallelThreshold(int parallelThreshold) 
+        {
+            if (parallelThreshold < 1) 
+            {
+                throw new IllegalArgumentException("Parallel threshold must be positive: " + parallelThreshold);
+            }
+            this.parallelThreshold = parallelThreshold;
+        }
+        public int parallelThreshold() 
+        {
+            return parallelThreshold;
+        }
+        // Live rows dated in [startDay, endDay] and, unless categoryId is RollupCube.ANY, of that category.
+        // A range holding a small share of the ledger visits only its rows through the date index;
+        // anything wider scans the day column, which is cheaper than chasing row ids.
+        public Summary summarize(ExpenseStore store, DateIndex dateIndex, int startDay, int endDay, int categoryId) 
+        {
+            int inRange = dateIndex.count(startDay, endDay);
+            // Every stored row was interned before these reads, so both sizes cover all of them
+            int categories = store.categories.size();
+            int currencies = store.currencies.size();
+            Partial partial;
+            if ((long) inRange * 4 < store.size()) 
+            {
+                int[] rows = new int[inRange];
+                int count = 0;
+                for (RowCursor cursor = dateIndex.rows(startDay, endDay); cursor.hasNext(); ) 
+                {
+                    rows[count++] = cursor.nextInt();
+                }
+                partial = run(new ChunkTask(store, rows, 0, count, startDay, endDay, categoryId, chunkSize(count), categories, currencies));
+            }
+            else 
+            {
+                partial = run(new ChunkTask(store, null, 0, store.size(), startDay, endDay, categoryId, chunkSize(store.size()), categories, currencies));
+            }
+            Summary summary = new Summary();
+            summary.startDay = startDay;
+            summary.endDay = endDay;
+            summary.total.merge(partial.total);
+            for (int id = 0; id < partial.byCategory.length; id++) 
+            {
+                if (partial.byCategory[id] != null) 
+                {
+                    summary.byCategory.put(store.categories.valueOf(id), partial.byCategory[id]);
+                }
+            }
+            ExpenseType[] types = ExpenseType.values();
+            for (int type = 0; type < types.length; type++) 
+            {
+                if (partial.byType[type] != null) 
+                {
+                    summary.byType.put(types[type], partial.byType[type]);
+                }
+            }
+            for (int id = 0; id < partial.byCurrency.length; id++) 
+            {
+                if (partial.byCurrency[id] != 0) 
+                {
+                    summary.byCurrency.merge(store.currencies.valueOf(id), partial.byCurrency[id], Money::add);
+                }
+            }
+            return summary;
+        }
+        // Sequential below the threshold or without spare workers; otherwise about four chunks per worker
+        private int chunkSize(int positions) 
+        {
+            if (positions < parallelThreshold || pool.getParallelism() < 2) 
+            {
+                return Math.max(positions, 1);
+            }
+            return Math.max(MIN_CHUNK, positions / (pool.getParallelism() * 4) + 1);
+        }
+        private Partial run(ChunkTask task) 
+        {
+            return task.to - task.from <= task.chunk ? task.fold() : pool.invoke(task);
+        }
+    }
+    // Exchange rates into the tracker currency, each taking effect on its day and holding until the next.
+    // Loaded from a local CSV of currency,yyyy-MM-dd,rate lines, the rate being tracker-currency units per
+    // unit of the currency; days before a currency's first rate use that first rate. A currency without
+    // rates (the tracker's own included) converts one to one, only the minor-unit scale changing.
+    // Each rate is turned into a Rate once, when first needed after a change; a lookup is then a hash probe
+    // on the row's currency and a binary search over its effective days, without taking a lock.
+    static class RateTable 
+    {
+        // Minor units of one currency to minor units of the tracker currency: minor * numerator / denominator, half-up
+        static final class Rate 
+        {
+            final long numerator;
+            final long denominator;
+            Rate(long numerator, long denominator) 
+            {
+                long gcd = java.math.BigInteger.valueOf(numerator).gcd(java.math.BigInteger.valueOf(denominator)).longValueExact();
+                this.numerator = numerator / gcd;
+                this.denominator = denominator / gcd;
+            }
+            // ArithmeticException when the rate needs more digits than a long fraction holds
+            static Rate of(java.math.BigDecimal rate, int fromScale, int toScale) 
+            {
+                java.math.BigDecimal factor = rate.movePointRight(toScale - fromScale).stripTrailingZeros();
+                if (factor.scale() > Money.MAX_SCALE) 
+                {
+                    throw new ArithmeticException("Rate " + rate.toPlainString() + " needs more than " + Money.MAX_SCALE + " decimal places");
+                }
+                if (factor.scale() <= 0) 
+                {
+                    return new Rate(factor.longValueExact(), 1);
+                }
+                return new Rate(factor.unscaledValue().longValueExact(), Money.pow10(factor.scale()));
+            }
+            long toReporting(long minor) 
+            {
+                return divideHalfUp(minor, numerator, denominator);
+            }
+            long fromReporting(long amount) 
+            {
+                return divideHalfUp(amount, denominator, numerator);
+            }
+            // Largest tracker amount whose fromReporting stays within minor, i.e. the biggest deduction the
+            // balance can cover: a * d / n < minor + 1/2, so a = ceil((2 * minor + 1) * n / (2 * d)) - 1
+            long coverable(long minor) 
+            {
+                try 
+                {
+                    long dividend = Math.multiplyExact(Math.addExact(Math.multiplyExact(minor, 2), 1), numerator);
+                    long divisor = Math.multiplyExact(denominator, 2);
+                    long quotient = Math.floorDiv(dividend, divisor);
+                    return Math.floorMod(dividend, divisor) == 0 ? quotient - 1 : quotient;
+                } 
+                catch (ArithmeticException e) 
+                {
+                    java.math.BigInteger[] division = java.math.BigInteger.valueOf(minor).shiftLeft(1).add(java.math.BigInteger.ONE)
+                            .multiply(java.math.BigInteger.valueOf(numerator))
+                            .divideAndRemainder(java.math.BigInteger.valueOf(denominator).shiftLeft(1));
+                    long quotient = division[0].longValueExact();
+                    return division[1].signum() > 0 ? quotient : quotient - 1;
+                }
+            }
+            // value * multiplier / divisor rounded half away from zero, exact even when the product overflows
+            private static long divideHalfUp(long value, long multiplier, long divisor) 
+            {
+                long high = Math.multiplyHigh(value, multiplier);
+                long product = value * multiplier;
+                if (high != (product >> 63)) 
+                {
+                    return new java.math.BigDecimal(java.math.BigInteger.valueOf(value).multiply(java.math.BigInteger.valueOf(multiplier)))
+                            .divide(java.math.BigDecimal.valueOf(divisor), 0, java.math.RoundingMode.HALF_UP).longValueExact();
+                }
+                long quotient = product / divisor;
+                long remainder = Math.abs(product % divisor);
+                if (remainder >= divisor - remainder) 
+                {
+                    quotient += Long.signum(product);
+                }
+                return quotient;
+            }
+        }
+        // One currency's rates as sorted effective days and the Rate from each, or, with days null, the
+        // one-to-one identity of a currency without rates
+        private static final class Converter 
+        {
+            final int[] days;
+            final Rate[] rates;
+            final Rate identity;
+            Converter(int[] days, Rate[] rates, Rate identity) 
+            {
+                this.days = days;
+                this.rates = rates;
+                this.identity = identity;
+            }
+            Rate at(int epochDay) 
+            {
+                if (days == null) 
+                {
+                    return identity;
+                }
+                int position = Arrays.binarySearch(days, epochDay);
+                return rates[Math.max(position >= 0 ? position : -position - 2, 0)];
+            }
+        }
+        // Every Rate for one reporting currency. Never changed once published, so lookups read it without locking
+        private static final class Converters 
+        {
+            final Map<String, Converter> byCode = new HashMap<>();
+            final String reportingCurrency;
+            final int reportingScale;
+            // Row currency as spelled -> its converter, filled on first use
+            final ConcurrentHashMap<String, Converter> bySpelling = new ConcurrentHashMap<>();
+            Converters(String reportingCurrency, int reportingScale) 
+            {
+                this.reportingCurrency = reportingCurrency;
+                this.reportingScale = reportingScale;
+            }
+            Converter of(String currency) 
+            {
+                Converter converter = bySpelling.get(currency);
+                if (converter == null) 
+                {
+                    String code = code(currency);
+                    Converter rated = code.equals(reportingCurrency) ? null : byCode.get(code);
+                    converter = rated != null ? rated : new Converter(null, null, Rate.of(java.math.BigDecimal.ONE, Money.scaleOf(currency), reportingScale));
+                    bySpelling.putIfAbsent(currency, converter);
+                }
+                return converter;
+            }
+        }
+        // Effective day -> rate, per upper-case currency code
+        private final TreeMap<String, TreeMap<Integer, java.math.BigDecimal>> rates = new TreeMap<>();
+        // Dropped by every change and rebuilt whole on the next lookup
+        private volatile Converters converters;
+        private String reportingCurrency = "";
+        private int reportingScale = Money.DEFAULT_SCALE;
+        int rejectedLines;
+        public synchronized void setReportingCurrency(String currency) 
+        {
+            reportingCurrency = code(currency);
+            reportingScale = Money.scaleOf(currency);
+            converters = null;
+        }
+        // Rate on the given day from the currency (as spelled on the row) into the tracker currency
+        public Rate rate(String currency, int epochDay) 
+        {
+            return converters().of(currency).at(epochDay);
+        }
+        // First day after epochDay on which the currency's rate changes, or Integer.MAX_VALUE
+        public int nextChange(String currency, int epochDay) 
+        {
+            int[] days = converters().of(currency).days;
+            if (days == null || epochDay == Integer.MAX_VALUE) 
+            {
+                return Integer.MAX_VALUE;
+            }
+            int position = Arrays.binarySearch(days, epochDay);
+            int next = position >= 0 ? position + 1 : -position - 1;
+            return next < days.length ? days[next] : Integer.MAX_VALUE;
+        }
+        // IllegalArgumentException unless the rate is positive and converts into the tracker currency
+        public synchronized void put(String currency, int epochDay, java.math.BigDecimal rate) 
+        {
+            if (rate.signum() <= 0) 
+            {
+                throw new IllegalArgumentException("Rate must be positive: " + rate);
+            }
+            try 
+            {
+                Rate.of(rate, Money.scaleOf(currency), reportingScale);
+            } 
+            catch (ArithmeticException e) 
+            {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            rates.computeIfAbsent(code(currency), key -> new TreeMap<>()).put(epochDay, rate);
+            converters = null;
+        }
+        // Replaces the table with the file's rates once the whole file is read. Lines that do not parse, or
+        // whose rate cannot be converted into the tracker currency, are skipped and counted in rejectedLines
+        public synchronized int load(String fileName) throws IOException 
+        {
+            TreeMap<String, TreeMap<Integer, java.math.BigDecimal>> loaded = new TreeMap<>();
+            int count = 0;
+            rejectedLines = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) 
+            {
+                String line;
+                while ((line = reader.readLine()) != null) 
+                {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) 
+                    {
+                        continue;
+                    }
+                    String[] fields = line.split(",");
+                    int epochDay = fields.length == 3 ? DateCodec.parse(fields[1].trim()) : DateCodec.INVALID;
+                    try 
+                    {
+                        java.math.BigDecimal rate = new java.math.BigDecimal(fields[2].trim());
+                        if (epochDay == DateCodec.INVALID || rate.signum() <= 0 || fields[0].trim().isEmpty()) 
+                        {
+                            rejectedLines++;
+                            continue;
+                        }
+                        Rate.of(rate, Money.scaleOf(fields[0]), reportingScale);
+                        loaded.computeIfAbsent(code(fields[0]), key -> new TreeMap<>()).put(epochDay, rate);
+                        count++;
+                    } 
+                    catch (NumberFormatException | ArrayIndexOutOfBoundsException | ArithmeticException e) 
+                    {
+                        rejectedLines++;
+                    }
+                }
+            }
+            rates.clear();
+            rates.putAll(loaded);
+            converters = null;
+            return count;
+        }
+        // Currency code -> (effective day -> rate), for persisting the table
+        public synchronized NavigableMap<String, TreeMap<Integer, java.math.BigDecimal>> entries() 
+        {
+            return Collections.unmodifiableNavigableMap(rates);
+        }
+        public synchronized boolean isEmpty() 
+        {
+            return rates.isEmpty();
+        }
+        public synchronized void copyFrom(RateTable other) 
+        {
+            rates.clear();
+            for (Map.Entry<String, TreeMap<Integer, java.math.BigDecimal>> entry : other.entries().entrySet()) 
+            {
+                rates.put(entry.getKey(), new TreeMap<>(entry.getValue()));
+            }
+            converters = null;
+        }
+        public synchronized void clear() 
+        {
+            rates.clear();
+            converters = null;
+        }
+        private Converters converters() 
+        {
+            Converters view = converters;
+            return view != null ? view : buildConverters();
+        }
+        // A rate that stopped converting after the tracker currency changed is left out, so its currency
+        // keeps the rate before it (or after it, when it was the first)
+        private synchronized Converters buildConverters() 
+        {
+            if (converters != null) 
+            {
+                return converters;
+            }
+            Converters view = new Converters(reportingCurrency, reportingScale);
+            for (Map.Entry<String, TreeMap<Integer, java.math.BigDecimal>> currency : rates.entrySet()) 
+            {
+                int fromScale = Money.scaleOf(currency.getKey());
+                int[] days = new int[currency.getValue().size()];
+                Rate[] built = new Rate[days.length];
+                int count = 0;
+                for (Map.Entry<Integer, java.math.BigDecimal> rate : currency.getValue().entrySet()) 
+                {
+                    try 
+                    {
+                        built[count] = Rate.of(rate.getValue(), fromScale, reportingScale);
+                        days[count++] = rate.getKey();
+                    } 
+                    catch (ArithmeticException e) 
+                    {
+                        // Left out, see above
+                    }
+                }
+                if (count > 0) 
+                {
+                    view.byCode.put(currency.getKey(), new Converter(Arrays.copyOf(days, count), Arrays.copyOf(built, count), null));
+                }
+            }
+            converters = view;
+            return view;
+        }
+        private static String code(String currency) 
+        {
+            return currency.trim().toUpperCase(Locale.ROOT);
+        }
+    }
+    // Recurring rules stored as (start, interval, amount, category) columns. Occurrences are never
+    // expanded into rows: a range total is occurrence count x amount per rule, so it costs O(rules)
+    // however long the range, and single occurrences are generated only for the days a report shows.
+    static class RecurringSchedule 
+    {
+        int[] startDays = new int[4];
+        // Interval 0 marks a rule carried over from formats that dropped the interval; it occurs once
+        int[] intervals = new int[4];
+        // Minor units of the rule's own currency
+        long[] amounts = new long[4];
+        int[] categoryIds = new int[4];
+        int[] currencyIds = new int[4];
+        long[] timestamps = new long[4];
+        int size;
+        final StringDictionary categories = new StringDictionary(true);
+        final StringDictionary currencies = new StringDictionary();
+        public int add(String category, long amount, int startDay, int intervalDays, String currency, long timestamp) 
+        {
+            if (size == startDays.length) 
+            {
+                int capacity = size * 2;
+                startDays = Arrays.copyOf(startDays, capacity);
+                intervals = Arrays.copyOf(intervals, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                categoryIds = Arrays.copyOf(categoryIds, capacity);
+                currencyIds = Arrays.copyOf(currencyIds, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+            }
+            int rule = size++;
+            startDays[rule] = startDay;
+            intervals[rule] = intervalDays;
+            amounts[rule] = amount;
+            categoryIds[rule] = categories.intern(category);
+            currencyIds[rule] = currencies.intern(currency);
+            timestamps[rule] = timestamp;
+            return rule;
+        }
+        public int size() 
+        {
+            return size;
+        }
+        public boolean isEmpty() 
+        {
+            return size == 0;
+        }
+        public String category(int rule) 
+        {
+            return categories.valueOf(categoryIds[rule]);
+        }
+        public int scale(int rule) 
+        {
+            return Money.scaleOf(currencies.valueOf(currencyIds[rule]));
+        }
+        // Number of occurrences of a rule within [startDay, endDay]
+        public long count(int rule, int startDay, int endDay) 
+        {
+            long start = startDays[rule];
+            long interval = intervals[rule];
+            long first = Math.max(startDay, start);
+            if (first > endDay) 
+            {
+                return 0;
+            }
+            if (interval == 0) 
+            {
+                return start >= startDay ? 1 : 0;
+            }
+            return (endDay - start) / interval - (first - start + interval - 1) / interval + 1;
+        }
+        // First occurrence on or after the given day, or Integer.MIN_VALUE if the rule has no more
+        public int nextOccurrence(int rule, int fromDay) 
+        {
+            long start = startDays[rule];
+            long interval = intervals[rule];
+            if (fromDay <= start) 
+            {
+                return (int) start;
+            }
+            if (interval == 0) 
+            {
+                return Integer.MIN_VALUE;
+            }
+            long next = start + (fromDay - start + interval - 1) / interval * interval;
+            return next > Integer.MAX_VALUE ? Integer.MIN_VALUE : (int) next;
+        }
+        // Sum of every occurrence within [startDay, endDay], in minor units of the tracker currency
+        public long total(int startDay, int endDay, RateTable rates) 
+        {
+            long total = 0;
+            for (int rule = 0; rule < size; rule++) 
+            {
+                total = Money.add(total, ruleTotal(rule, startDay, endDay, rates));
+            }
+            return total;
+        }
+        // Per-category sums within [startDay, endDay], indexed by category id of this schedule
+        public long[] totalsByCategory(int startDay, int endDay, RateTable rates) 
+        {
+            long[] totals = new long[categories.size()];
+            for (int rule = 0; rule < size; rule++) 
+            {
+                totals[categoryIds[rule]] = Money.add(totals[categoryIds[rule]], ruleTotal(rule, startDay, endDay, rates));
+            }
+            return totals;
+        }
+        public void clear() 
+        {
+            size = 0;
+            categories.clear();
+            currencies.clear();
+        }
+        // Occurrences are counted per stretch of days sharing one exchange rate, so the cost grows with
+        // the number of rate changes in the range rather than with its length
+        private long ruleTotal(int rule, int startDay, int endDay, RateTable rates) 
+        {
+            String currency = currencies.valueOf(currencyIds[rule]);
+            long total = 0;
+            for (int from = Math.max(startDay, startDays[rule]); from <= endDay; ) 
+            {
+                int next = rates.nextChange(currency, from);
+                int to = next == Integer.MAX_VALUE ? endDay : Math.min(endDay, next - 1);
+                long count = count(rule, from, to);
+                if (count > 0) 
+                {
+                    total = Money.add(total, Math.multiplyExact(count, rates.rate(currency, from).toReporting(amounts[rule])));
+                }
+                if (to == endDay || (intervals[rule] == 0 && count > 0)) 
+                {
+                    break;
+                }
+                from = to + 1;
+            }
+            return total;
+        }
+    }
+    // Renders expense listings straight from the store columns into one reusable buffer and hands it
+    // to the sink in large chunks, instead of a synchronized println and an Expense.toString per row.
+    // A page (offset, limit) renders only the rows inside it; rows outside are counted, not formatted.
+    static class ReportWriter implements Closeable 
+    {
+        enum Format 
+        {
+            // The classic "Category: ..., Amount: ..." lines
+            TEXT,
+            // Aligned columns under a header
+            TABLE,
+            // saveToFile's column order, quoting fields that need it; unquoted exports load back through loadFromFile
+            CSV,
+            // One JSON object per line
+            JSONL
+        }
+        private static final int FLUSH_THRESHOLD = 1 << 16;
+        private final Writer out;
+        private final boolean closeOut;
+        final Format format;
+        private final StringBuilder buffer = new StringBuilder(256);
+        private final StringBuilder scratch = new StringBuilder(24);
+        private char[] chunk = new char[0];
+        private long offset;
+        private long limit = Long.MAX_VALUE;
+        private long rows;
+        private long rendered;
+        private boolean headerWritten;
+        ReportWriter(Writer out, Format format, boolean closeOut) 
+        {
+            this.out = out;
+            this.format = format;
+            this.closeOut = closeOut;
+        }
+        // Writes through whatever System.out currently is; closing flushes but leaves it open
+        static ReportWriter console(Format format) 
+        {
+            return new ReportWriter(new OutputStreamWriter(System.out), format, false);
+        }
+        static ReportWriter file(String fileName, Format format) throws IOException 
+        {
+            return new ReportWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(fileName)), StandardCharsets.UTF_8), format, true);
+        }
+        // Renders only rows [offset, offset + limit) of what the report offers
+        public ReportWriter page(long offset, long limit) 
+        {
+            this.offset = Math.max(offset, 0);
+            this.limit = limit <= 0 ? Long.MAX_VALUE : limit;
+            return this;
+        }
+        public long rows() 
+        {
+            return rows;
+        }
+        public long rendered() 
+        {
+            return rendered;
+        }
+        // Headings and notices belong to the human-readable formats; CSV and JSON Lines skip them
+        public void message(String text) throws IOException 
+        {
+            if (format == Format.TEXT || format == Format.TABLE) 
+            {
+                buffer.append(text).append('\n');
+                flushIfFull();
+            }
+        }
+        public void row(ExpenseStore store, int row) throws IOException 
+        {
+            if (accept()) 
+            {
+                String currency = store.currency(row);
+                render(store.category(row), store.amounts[row], Money.scaleOf(currency), currency, store.epochDays[row],
+                        store.type(row), store.timestamps[row], null);
+            }
+        }
+        // One occurrence of a recurring rule, with an optional note such as its interval
+        public void row(RecurringSchedule schedule, int rule, int epochDay, String note) throws IOException 
+        {
+            if (accept()) 
+            {
+                render(schedule.category(rule), schedule.amounts[rule], schedule.scale(rule), schedule.currencies.valueOf(schedule.currencyIds[rule]),
+                        epochDay, ExpenseType.RECURRING, schedule.timestamps[rule], note);
+            }
+        }
+        // Notes how much of a paged listing was shown, then flushes
+        public void finish() throws IOException 
+        {
+            if (rendered < rows) 
+            {
+                message(rendered == 0 ? "No rows on this page (" + rows + " in total)."
+                        : "Showing rows " + (offset + 1) + "-" + (offset + rendered) + " of " + rows + ".");
+            }
+            flush();
+        }
+        public void flush() throws IOException 
+        {
+            if (buffer.length() > 0) 
+            {
+                if (chunk.length < buffer.length()) 
+                {
+                    chunk = new char[Math.max(buffer.length(), Math.min(chunk.length * 2, FLUSH_THRESHOLD * 2))];
+                }
+                buffer.getChars(0, buffer.length(), chunk, 0);
+                out.write(chunk, 0, buffer.length());
+                buffer.setLength(0);
+            }
+            out.flush();
+        }
+        @Override
+        public void close() throws IOException 
+        {
+            flush();
+            if (closeOut) 
+            {
+                out.close();
+            }
+        }
+        private boolean accept() 
+        {
+            long index = rows++;
+            return index >= offset && index - offset < limit;
+        }
+        private void render(String category, long amount, int scale, String currency, int epochDay, ExpenseType type, long timestamp, String note) throws IOException 
+        {
+            if (!headerWritten) 
+            {
+                headerWritten = true;
+                if (format == Format.TABLE) 
+                {
+                    pad(buffer.append("Category"), 8, 24).append("          Amount  Date        ");
+                    pad(buffer.append("Type"), 4, 11).append("Timestamp\n");
+                }
+            }
+            switch (format) 
+            {
+                case TEXT:
+                    buffer.append("Category: ").append(category).append(", Amount: ").append(currency);
+                    Money.appendTo(buffer, amount, scale).append(", Date: ");
+                    DateCodec.append(buffer, epochDay).append(", Type: ").append(type).append(", Timestamp: ");
+                    DateCodec.appendTimestamp(buffer, timestamp);
+                    if (note != null) 
+                    {
+                        buffer.append(", ").append(note);
+                    }
+                    break;
+                case TABLE:
+                    pad(buffer.append(category), category.length(), 24);
+                    scratch.setLength(0);
+                    Money.appendTo(scratch.append(currency), amount, scale);
+                    for (int i = scratch.length(); i < 16; i++) 
+                    {
+                        buffer.append(' ');
+                    }
+                    buffer.append(scratch);
+                    DateCodec.append(buffer.append("  "), epochDay).append("  ");
+                    pad(buffer.append(type), type.name().length(), 11);
+                    DateCodec.appendTimestamp(buffer, timestamp);
+                    if (note != null) 
+                    {
+                        buffer.append("  ").append(note);
+                    }
+                    break;
+                case CSV:
+                    csv(buffer, category).append(',');
+                    Money.appendTo(buffer, amount, scale).append(',');
+                    DateCodec.append(buffer, epochDay).append(',').append(type).append(',');
+                    DateCodec.appendTimestamp(buffer, timestamp).append(',');
+                    csv(buffer, currency);
+                    break;
+                case JSONL:
+                    json(buffer.append("{\"category\":"), category).append(",\"amount\":");
+                    Money.appendTo(buffer, amount, scale).append(",\"currency\":");
+                    json(buffer, currency).append(",\"date\":\"");
+                    DateCodec.append(buffer, epochDay).append("\",\"type\":\"").append(type).append("\",\"timestamp\":\"");
+                    DateCodec.appendTimestamp(buffer, timestamp).append('"');
+                    if (note != null) 
+                    {
+                        json(buffer.append(",\"note\":"), note);
+                    }
+                    buffer.append('}');
+                    break;
+            }
+            buffer.append('\n');
+            rendered++;
+            flushIfFull();
+        }
+        private void flushIfFull() throws IOException 
+        {
+            if (buffer.length() >= FLUSH_THRESHOLD) 
+            {
+                flush();
+            }
+        }
+        private static StringBuilder pad(StringBuilder text, int length, int width) 
+        {
+            for (int i = length; i < width; i++) 
+            {
+                text.append(' ');
+            }
+            return text.append(' ');
+        }
+        private static StringBuilder csv(StringBuilder text, String value) 
+        {
+            if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) 
+            {
+                return text.append(value);
+            }
+            return text.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+        static StringBuilder json(StringBuilder text, String value) 
+        {
+            text.append('"');
+            for (int i = 0; i < value.length(); i++) 
+            {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') 
+                {
+                    text.append('\\').append(c);
+                }
+                else if (c < 0x20) 
+                {
+                    text.append(String.format("\\u%04x", (int) c));
+                }
+                else 
+                {
+                    text.append(c);
+                }
+            }
+            return text.append('"');
+        }
+    }
+    // Bulk CSV importer: scans bytes straight out of a FileChannel buffer, parses each field in
+    // place (no String.split, no DateTimeFormatter) and appends rows to the store without output.
+    // Indexes and aggregates are left for the caller to rebuild once the whole file is in.
+    static class BulkLoader 
+    {
+        private static final int BUFFER_SIZE = 1 << 20;
+        private static final byte[] LIMIT_HEADER = "Monthly Limit: ".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[][] TYPE_NAMES = new byte[ExpenseType.values().length][];
+        static 
+        {
+            for (ExpenseType type : ExpenseType.values()) 
+            {
+                TYPE_NAMES[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+        private final ExpenseStore store;
+        private final int[] fieldStarts = new int[6];
+        private final int[] fieldEnds = new int[6];
+        private final int limitScale;
+        private long loadTimestamp;
+        int rowsLoaded;
+        int rejectedLines;
+        // Last "Monthly Limit" header seen, in minor units of the tracker currency
+        long monthlyLimit = INVALID;
+        static final long INVALID = Long.MIN_VALUE;
+        public BulkLoader(ExpenseStore store, int limitScale) 
+        {
+            this.store = store;
+            this.limitScale = limitScale;
+        }
+        public void load(String fileName) throws IOException 
+        {
+            loadTimestamp = ExpenseStore.encodeTimestamp(java.time.LocalDateTime.now());
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName))) 
+            {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                byte[] bytes = buffer.array();
+                boolean eof = false;
+                while (!eof) 
+                {
+                    eof = channel.read(buffer) < 0;
+                    int limit = buffer.position();
+                    int lineStart = 0;
+                    for (int i = 0; i < limit; i++) 
+                    {
+                        if (bytes[i] == '\n') 
+                        {
+                            parseLine(bytes, lineStart, i);
+                            lineStart = i + 1;
+                        }
+                    }
+                    if (eof && lineStart < limit) 
+                    {
+                        parseLine(bytes, lineStart, limit);
+                        lineStart = limit;
+                    }
+                    if (lineStart == 0 && limit == bytes.length) 
+                    {
+                        throw new IOException("Line longer than " + BUFFER_SIZE + " bytes");
+                    }
+                    // Carry the partial last line over to the front of the buffer
+                    System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                    buffer.position(limit - lineStart);
+                }
+            }
+        }
+        private void parseLine(byte[] bytes, int start, int end) 
+        {
+            if (end > start && bytes[end - 1] == '\r') 
+            {
+                end--;
+            }
+            if (start == end) 
+            {
+                return;
+            }
+            if (startsWith(bytes, start, end, LIMIT_HEADER)) 
+            {
+                long limit = parseMinor(bytes, start + LIMIT_HEADER.length, end, limitScale);
+                if (limit == INVALID) 
+                {
+                    rejectedLines++;
+                }
+                else 
+                {
+                    monthlyLimit = limit;
+                }
+                return;
+            }
+            int fields = 0;
+            int fieldStart = start;
+            for (int i = start; i <= end && fields < fieldStarts.length; i++) 
+            {
+                if (i == end || bytes[i] == ',') 
+                {
+                    fieldStarts[fields] = fieldStart;
+                    fieldEnds[fields] = i;
+                    fields++;
+                    fieldStart = i + 1;
+                }
+            }
+            if (fields != 6 || fieldEnds[5] != end) 
+            {
+                rejectedLines++;
+                return;
+            }
+            String currency = new String(bytes, fieldStarts[5], fieldEnds[5] - fieldStarts[5], StandardCharsets.UTF_8);
+            long amount = parseMinor(bytes, fieldStarts[1], fieldEnds[1], Money.scaleOf(currency));
+            int epochDay = DateCodec.parse(bytes, fieldStarts[2], fieldEnds[2]);
+            int type = parseType(bytes, fieldStarts[3], fieldEnds[3]);
+            if (amount == INVALID || amount <= 0 || epochDay == DateCodec.INVALID || type < 0 || fieldStarts[0] == fieldEnds[0]) 
+            {
+                rejectedLines++;
+                return;
+            }
+            long timestamp = DateCodec.parseTimestamp(bytes, fieldStarts[4], fieldEnds[4]);
+            String category = new String(bytes, fieldStarts[0], fieldEnds[0] - fieldStarts[0], StandardCharsets.UTF_8);
+            store.add(category, amount, epochDay, ExpenseType.values()[type], currency, timestamp == Long.MIN_VALUE ? loadTimestamp : timestamp);
+            rowsLoaded++;
+        }
+        private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) 
+        {
+            if (end - start < prefix.length) 
+            {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) 
+            {
+                if (bytes[start + i] != prefix[i]) 
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // Parses [-]digits[.digits] straight into minor units, rounding half-up past the scale.
+        // Exponent forms (Double.toString output for large values) take a slow BigDecimal path.
+        static long parseMinor(byte[] bytes, int start, int end, int scale) 
+        {
+            int i = start;
+            boolean negative = i < end && bytes[i] == '-';
+            if (negative) 
+            {
+                i++;
+            }
+            long value = 0;
+            int digits = 0;
+            int fractionDigits = -1;
+            boolean roundUp = false;
+            for (; i < end; i++) 
+            {
+                byte b = bytes[i];
+                if (b >= '0' && b <= '9') 
+                {
+                    if (fractionDigits >= scale) 
+                    {
+                        // Only the first dropped digit decides half-up rounding
+                        if (fractionDigits == scale) 
+                        {
+                            roundUp = b >= '5';
+                            fractionDigits++;
+                        }
+                        digits++;
+                        continue;
+                    }
+                    if (value > (Long.MAX_VALUE - 9) / 10) 
+                    {
+                        return INVALID;
+                    }
+                    value = value * 10 + (b - '0');
+                    digits++;
+                    if (fractionDigits >= 0) 
+                    {
+                        fractionDigits++;
+                    }
+                }
+                else if (b == '.' && fractionDigits < 0) 
+                {
+                    fractionDigits = 0;
+                }
+                else if (b == 'E' || b == 'e') 
+                {
+                    return parseMinorSlow(bytes, start, end, scale);
+                }
+                else 
+                {
+                    return INVALID;
+                }
+            }
+            if (digits == 0) 
+            {
+                return INVALID;
+            }
+            int kept = Math.min(Math.max(fractionDigits, 0), scale);
+            try 
+            {
+                value = Math.multiplyExact(value, Money.pow10(scale - kept));
+                if (roundUp) 
+                {
+                    value = Math.addExact(value, 1);
+                }
+            } 
+            catch (ArithmeticException e) 
+            {
+                return INVALID;
+            }
+            return negative ? -value : value;
+        }
+        private static long parseMinorSlow(byte[] bytes, int start, int end, int scale) 
+        {
+            try 
+            {
+                return new java.math.BigDecimal(new String(bytes, start, end - start, StandardCharsets.US_ASCII))
+                        .setScale(scale, java.math.RoundingMode.HALF_UP).unscaledValue().longValueExact();
+            } 
+            catch (NumberFormatException | ArithmeticException e) 
+            {
+                return INVALID;
+            }
+        }
+        private static int parseType(byte[] bytes, int start, int end) 
+        {
+            for (int type = 0; type < TYPE_NAMES.length; type++) 
+            {
+                byte[] name = TYPE_NAMES[type];
+                if (name.length != end - start) 
+                {
+                    continue;
+                }
+                boolean match = true;
+                for (int i = 0; i < name.length && match; i++) 
+                {
+                    match = (bytes[start + i] & ~0x20) == name[i];
+                }
+                if (match) 
+                {
+                    return type;
+                }
+            }
+            return -1;
+        }
+    }
+    // Versioned binary snapshot of the expense store.
+    // Layout (little-endian): header [magic, version, monthly limit, row count, dictionary sizes],
+    // string dictionary section [tracker currency, categories, currencies as length-prefixed UTF-8],
+    // then one fixed-width block per column in store order. Version 2 appends the recurring expenses;
+    // version 3 stores the limit and all amounts as minor-unit longs instead of doubles; version 4 adds
+    // each recurring rule's interval; version 5 appends the exchange-rate table.
+    static class SnapshotFile 
+    {
+        static final int MAGIC = 0x50455453; // "PETS"
+        static final int VERSION = 5;
+        private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+        static class Snapshot 
+        {
+            long monthlyLimit;
+            String currency;
+            ExpenseStore store;
+            RecurringSchedule recurring = new RecurringSchedule();
+            // Null for versions before 5
+            RateTable rates;
+        }
+        // Writes header, dictionaries and every column with a single gathering write, then
+        // atomically replaces the target so a crash mid-write never leaves a torn snapshot
+        static void write(String fileName, long monthlyLimit, String currency, ExpenseStore store, 
+                RecurringSchedule recurring, RateTable rates) throws IOException 
+        {
+            if (store.removedCount > 0) 
+            {
+                store = store.liveCopy();
+            }
+            int rows = store.size();
+            // Concurrent adds may intern names while this runs, so the header and the entries share one read
+            int categories = store.categories.size();
+            int currencies = store.currencies.size();
+            ByteBuffer dictionary = encodeDictionary(currency, store, categories, currencies);
+            ByteBuffer header = buffer(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(monthlyLimit).putInt(rows)
+                  .putInt(categories).putInt(currencies).flip();
+            ByteBuffer amounts = buffer(rows * 8);
+            amounts.asLongBuffer().put(store.amounts, 0, rows);
+            ByteBuffer epochDays = buffer(rows * 4);
+            epochDays.asIntBuffer().put(store.epochDays, 0, rows);
+            ByteBuffer types = ByteBuffer.wrap(store.types, 0, rows);
+            ByteBuffer categoryIds = buffer(rows * 4);
+            categoryIds.asIntBuffer().put(store.categoryIds, 0, rows);
+            ByteBuffer currencyIds = buffer(rows * 4);
+            currencyIds.asIntBuffer().put(store.currencyIds, 0, rows);
+            ByteBuffer timestamps = buffer(rows * 8);
+            timestamps.asLongBuffer().put(store.timestamps, 0, rows);
+            ByteBuffer rules = encodeRecurring(recurring);
+            ByteBuffer rateTable = encodeRates(rates);
+            ByteBuffer[] sections = {header, dictionary, amounts, epochDays, types, categoryIds, currencyIds, timestamps, rules, rateTable};
+            Path target = Paths.get(fileName).toAbsolutePath();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, 
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) 
+            {
+                long remaining = 0;
+                for (ByteBuffer section : sections) 
+                {
+                    remaining += section.remaining();
+                }
+                while (remaining > 0) 
+                {
+                    remaining -= channel.write(sections);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        // Maps the file read-only and bulk-copies each column block into a fresh store
+        static Snapshot read(String fileName) throws IOException 
+        {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName))) 
+            {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                try 
+                {
+                    return decode(mapped);
+                } 
+                catch (BufferUnderflowException | IllegalArgumentException e) 
+                {
+                    throw new IOException("Corrupt snapshot: " + fileName, e);
+                }
+            }
+        }
+        private static Snapshot decode(ByteBuffer in) throws IOException 
+        {
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) 
+            {
+                throw new IOException("Not an expense snapshot");
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) 
+            {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            Snapshot snapshot = new Snapshot();
+            // Versions before 3 hold doubles; they are converted to minor units once the currencies are known
+            boolean legacyAmounts = version < 3;
+            long rawLimit = in.getLong();
+            int rows = in.getInt();
+            int categoryCount = in.getInt();
+            int currencyCount = in.getInt();
+            snapshot.currency = readString(in);
+            snapshot.monthlyLimit = legacyAmounts ? Money.toMinor(Double.longBitsToDouble(rawLimit), Money.scaleOf(snapshot.currency)) : rawLimit;
+            ExpenseStore store = new ExpenseStore(Math.max(rows, 16));
+            for (int i = 0; i < categoryCount; i++) 
+            {
+                store.categories.intern(readString(in));
+            }
+            for (int i = 0; i < currencyCount; i++) 
+            {
+                store.currencies.intern(readString(in));
+            }
+            double[] legacy = null;
+            if (legacyAmounts) 
+            {
+                legacy = new double[rows];
+                in.asDoubleBuffer().get(legacy, 0, rows);
+            }
+            else 
+            {
+                in.asLongBuffer().get(store.amounts, 0, rows);
+            }
+            in.position(in.position() + rows * 8);
+            in.asIntBuffer().get(store.epochDays, 0, rows);
+            in.position(in.position() + rows * 4);
+            in.get(store.types, 0, rows);
+            in.asIntBuffer().get(store.categoryIds, 0, rows);
+            in.position(in.position() + rows * 4);
+            in.asIntBuffer().get(store.currencyIds, 0, rows);
+            in.position(in.position() + rows * 4);
+            in.asLongBuffer().get(store.timestamps, 0, rows);
+            in.position(in.position() + rows * 8);
+            store.size = rows;
+            if (legacyAmounts) 
+            {
+                int[] scales = store.currencyScales();
+                for (int row = 0; row < rows; row++) 
+                {
+                    store.amounts[row] = Money.toMinor(legacy[row], scales[store.currencyIds[row]]);
+                }
+            }
+            if (version >= 2) 
+            {
+                int recurringCount = in.getInt();
+                for (int i = 0; i < recurringCount; i++) 
+                {
+                    String category = readString(in);
+                    long rawAmount = in.getLong();
+                    String date = readString(in);
+                    String currency = readString(in);
+                    byte[] timestamp = readString(in).getBytes(StandardCharsets.US_ASCII);
+                    int intervalDays = version >= 4 ? in.getInt() : 0;
+                    long amount = legacyAmounts ? Money.toMinor(Double.longBitsToDouble(rawAmount), Money.scaleOf(currency)) : rawAmount;
+                    byte[] dateBytes = date.getBytes(StandardCharsets.US_ASCII);
+                    int startDay = DateCodec.parse(dateBytes, 0, dateBytes.length);
+                    long encodedTimestamp = DateCodec.parseTimestamp(timestamp, 0, timestamp.length);
+                    if (startDay == DateCodec.INVALID) 
+                    {
+                        // Older trackers kept the start date unvalidated; such a rule cannot be scheduled
+                        continue;
+                    }
+                    if (encodedTimestamp == Long.MIN_VALUE) 
+                    {
+                        encodedTimestamp = ExpenseStore.encodeTimestamp(java.time.LocalDateTime.now());
+                    }
+                    snapshot.recurring.add(category, amount, startDay, intervalDays, currency, encodedTimestamp);
+                }
+            }
+            if (version >= 5) 
+            {
+                snapshot.rates = new RateTable();
+                snapshot.rates.setReportingCurrency(snapshot.currency);
+                for (int currencies = in.getInt(); currencies > 0; currencies--) 
+                {
+                    String currency = readString(in);
+                    for (int count = in.getInt(); count > 0; count--) 
+                    {
+                        int epochDay = in.getInt();
+                        snapshot.rates.put(currency, epochDay, new java.math.BigDecimal(readString(in)));
+                    }
+                }
+            }
+            snapshot.store = store;
+            return snapshot;
+        }
+        private static ByteBuffer encodeDictionary(String currency, ExpenseStore store, int categories, int currencies) 
+        {
+            ArrayList<byte[]> strings = new ArrayList<>();
+            strings.add(currency.getBytes(StandardCharsets.UTF_8));
+            for (int id = 0; id < categories; id++) 
+            {
+                strings.add(store.categories.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int id = 0; id < currencies; id++) 
+            {
+                strings.add(store.currencies.valueOf(id).getBytes(StandardCharsets.UTF_8));
+            }
+            int length = 0;
+            for (byte[] string : strings) 
+            {
+                length += 4 + string.length;
+            }
+            ByteBuffer buffer = buffer(length);
+            for (byte[] string : strings) 
+            {
+                buffer.putInt(string.length).put(string);
+            }
+            return buffer.flip();
+        }
+        private static ByteBuffer encodeRecurring(RecurringSchedule recurring) 
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int rule = 0; rule < recurring.size(); rule++) 
+            {
+                writeString(bytes, recurring.category(rule));
+                bytes.writeBytes(buffer(8).putLong(recurring.amounts[rule]).array());
+                writeString(bytes, DateCodec.format(recurring.startDays[rule]));
+                writeString(bytes, recurring.currencies.valueOf(recurring.currencyIds[rule]));
+                writeString(bytes, ExpenseStore.decodeTimestamp(recurring.timestamps[rule]));
+                bytes.writeBytes(buffer(4).putInt(recurring.intervals[rule]).array());
+            }
+            ByteBuffer buffer = buffer(4 + bytes.size());
+            return buffer.putInt(recurring.size()).put(bytes.toByteArray()).flip();
+        }
+        // Per currency: code, rate count, then (effective epoch day, rate as plain decimal text) pairs
+        private static ByteBuffer encodeRates(RateTable rates) 
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            NavigableMap<String, TreeMap<Integer, java.math.BigDecimal>> entries = rates.entries();
+            for (Map.Entry<String, TreeMap<Integer, java.math.BigDecimal>> currency : entries.entrySet()) 
+            {
+                writeString(bytes, currency.getKey());
+                bytes.writeBytes(buffer(4).putInt(currency.getValue().size()).array());
+                for (Map.Entry<Integer, java.math.BigDecimal> rate : currency.getValue().entrySet()) 
+                {
+                    bytes.writeBytes(buffer(4).putInt(rate.getKey()).array());
+                    writeString(bytes, rate.getValue().toPlainString());
+                }
+            }
+            ByteBuffer buffer = buffer(4 + bytes.size());
+            return buffer.putInt(entries.size()).put(bytes.toByteArray()).flip();
+        }
+        static void writeString(ByteArrayOutputStream out, String value) 
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeBytes(buffer(4).putInt(bytes.length).array());
+            out.writeBytes(bytes);
+        }
+        static String readString(ByteBuffer in) 
+        {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        static ByteBuffer buffer(int size) 
+        {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    // Append-only journal of tracker mutations with group commit.
+    // Each record is framed as [payload length][CRC32][payload], payload starting with the op code.
+    // Writers only append to an in-memory batch; a background thread writes and fsyncs the batch
+    // every commit interval (or sooner once it grows past the batch limit), so a crash loses at most
+    // one interval of acknowledged operations while each mutation costs O(1).
+    static class Journal implements Closeable 
+    {
+        // Ops 1-4 carried double amounts; they are still replayed but no longer written
+        static final byte LEGACY_ADD = 1;
+        static final byte LEGACY_DEDUCT = 2;
+        static final byte LEGACY_LIMIT = 3;
+        static final byte LEGACY_RECURRING = 4;
+        static final byte RESET = 5;
+        // Sorts no longer reorder the store, so ops 6-7 are only replayed
+        static final byte SORT_BY_AMOUNT = 6;
+        static final byte SORT_BY_DATE = 7;
+        static final byte ADD = 8;
+        static final byte DEDUCT = 9;
+        static final byte LIMIT = 10;
+        static final byte RECURRING = 11;
+        private static final int MAX_BATCH_BYTES = 1 << 20;
+        interface RecordVisitor 
+        {
+            void visit(byte op, DataInputStream in) throws IOException;
+        }
+        private final FileChannel channel;
+        private final long commitIntervalMillis;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        private ByteArrayOutputStream spare = new ByteArrayOutputStream();
+        private long appendedRecords;
+        private long durableRecords;
+        private IOException failure;
+        private boolean closed;
+        private final Thread flusher;
+        public Journal(Path file, long commitIntervalMillis) throws IOException 
+        {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, 
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.commitIntervalMillis = commitIntervalMillis;
+            this.flusher = new Thread(this::runFlusher, "expense-journal-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+        public void logAdd(String category, long amount, int epochDay, ExpenseType type, String currency, long timestamp) 
+        {
+            synchronized (this) 
+            {
+                try 
+                {
+                    begin(ADD);
+                    recordOut.writeUTF(category);
+                    recordOut.writeLong(amount);
+                    recordOut.writeInt(epochDay);
+                    recordOut.writeByte(type.ordinal());
+                    recordOut.writeUTF(currency);
+                    recordOut.writeLong(timestamp);
+                    commitRecord();
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        public void logDeduct(String category, long amount) 
+        {
+            synchronized (this) 
+            {
+                try 
+                {
+                    begin(DEDUCT);
+                    recordOut.writeUTF(category);
+                    recordOut.writeLong(amount);
+                    commitRecord();
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        public void logLimit(long monthlyLimit) 
+        {
+            synchronized (this) 
+            {
+                try 
+                {
+                    begin(LIMIT);
+                    recordOut.writeLong(monthlyLimit);
+                    commitRecord();
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        public void logRecurring(String category, long amount, String startDate, int intervalDays) 
+        {
+            synchronized (this) 
+            {
+                try 
+                {
+                    begin(RECURRING);
+                    recordOut.writeUTF(category);
+                    recordOut.writeLong(amount);
+                    recordOut.writeUTF(startDate);
+                    recordOut.writeInt(intervalDays);
+                    commitRecord();
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        // Records an operation that carries no arguments (reset, sorts)
+        public void log(byte op) 
+        {
+            synchronized (this) 
+            {
+                try 
+                {
+                    begin(op);
+                    commitRecord();
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        private void begin(byte op) throws IOException 
+        {
+            if (closed) 
+            {
+                throw new IOException("Journal is closed");
+            }
+            if (failure != null) 
+            {
+                throw new IOException("Journal write failed earlier", failure);
+            }
+            record.reset();
+            recordOut.writeByte(op);
+        }
+        private void commitRecord() 
+        {
+            byte[] payload = record.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            DataOutputStream out = new DataOutputStream(batch);
+            try 
+            {
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            } 
+            catch (IOException e) 
+            {
+                throw new UncheckedIOException(e);
+            }
+            appendedRecords++;
+            if (batch.size() >= MAX_BATCH_BYTES) 
+            {
+                notifyAll();
+            }
+        }
+        // Blocks until every record appended so far has been fsynced
+        public void sync() throws IOException 
+        {
+            synchronized (this) 
+            {
+                long target = appendedRecords;
+                notifyAll();
+                while (durableRecords < target && failure == null) 
+                {
+                    try 
+                    {
+                        wait();
+                    } 
+                    catch (InterruptedException e) 
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while syncing journal");
+                    }
+                }
+                if (failure != null) 
+                {
+                    throw failure;
+                }
+            }
+        }
+        private void runFlusher() 
+        {
+            while (true) 
+            {
+                ByteArrayOutputStream toWrite;
+                long records;
+                synchronized (this) 
+                {
+                    while (!closed && batch.size() == 0) 
+                    {
+                        try 
+                        {
+                            wait();
+                        } 
+                        catch (InterruptedException e) 
+                        {
+                            return;
+                        }
+                    }
+                    if (batch.size() < MAX_BATCH_BYTES && !closed) 
+                    {
+                        // Let concurrent appends join this group commit
+                        try 
+                        {
+                            wait(commitIntervalMillis);
+                        } 
+                        catch (InterruptedException e) 
+                        {
+                            return;
+                        }
+                    }
+                    if (batch.size() == 0 && closed) 
+                    {
+                        return;
+                    }
+                    toWrite = batch;
+                    batch = spare;
+                    spare = toWrite;
+                    records = appendedRecords;
+                }
+                try 
+                {
+                    ByteBuffer buffer = ByteBuffer.wrap(toWrite.toByteArray());
+                    while (buffer.hasRemaining()) 
+                    {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                } 
+                catch (IOException e) 
+                {
+                    synchronized (this) 
+                    {
+                        failure = e;
+                        notifyAll();
+                    }
+                    return;
+                }
+                synchronized (this) 
+                {
+                    toWrite.reset();
+                    durableRecords = records;
+                    notifyAll();
+                }
+            }
+        }
+        public long size() throws IOException 
+        {
+            return channel.size();
+        }
+        @Override
+        public void close() throws IOException 
+        {
+            try 
+            {
+                sync();
+            } 
+            finally 
+            {
+                synchronized (this) 
+                {
+                    closed = true;
+                    notifyAll();
+                }
+                try 
+                {
+                    flusher.join();
+                } 
+                catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                }
+                channel.close();
+            }
+        }
+        // Feeds every intact record to the visitor and truncates a torn or corrupt tail
+        static void replay(Path file, RecordVisitor visitor) throws IOException 
+        {
+            long validLength = 0;
+            long fileLength = Files.size(file);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) 
+            {
+                java.util.zip.CRC32 checksum = new java.util.zip.CRC32();
+                while (true) 
+                {
+                    int length;
+                    int expectedCrc;
+                    byte[] payload;
+                    try 
+                    {
+                        length = in.readInt();
+                        expectedCrc = in.readInt();
+                        if (length <= 0) 
+                        {
+                            break;
+                        }
+                        if (length > MAX_BATCH_BYTES) 
+                        {
+                            // A torn tail can hold any length, but a whole record with a matching checksum is real
+                            // data; truncating there would silently drop it and everything after it
+                            if (length <= fileLength - validLength - 8 && checksumOf(in, length, checksum) == expectedCrc) 
+                            {
+                                throw new IOException("Journal record of " + length + " bytes at offset " + validLength + " exceeds the " + MAX_BATCH_BYTES + "-byte limit");
+                            }
+                            break;
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                    } 
+                    catch (EOFException e) 
+                    {
+                        break;
+                    }
+                    checksum.reset();
+                    checksum.update(payload);
+                    if ((int) checksum.getValue() != expectedCrc) 
+                    {
+                        break;
+                    }
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    visitor.visit(record.readByte(), record);
+                    validLength += 8 + length;
+                }
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) 
+            {
+                if (channel.size() > validLength) 
+                {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+        // CRC of the next length bytes, read in blocks so an oversized record is never held whole
+        private static int checksumOf(DataInputStream in, int length, java.util.zip.CRC32 checksum) throws IOException 
+        {
+            checksum.reset();
+            byte[] block = new byte[64 << 10];
+            for (int remaining = length; remaining > 0; ) 
+            {
+                int read = in.read(block, 0, Math.min(block.length, remaining));
+                if (read < 0) 
+                {
+                    throw new EOFException();
+                }
+                checksum.update(block, 0, read);
+                remaining -= read;
+            }
+            return (int) checksum.getValue();
+        }
+    }
+    // Sealed tier for closed periods. Each sealing pass moves every hot row dated before a cutoff into one
+    // immutable segment file in the archive directory (segment.<n>.seg, n counting up from 1). A segment
+    // carries its rollup aggregates uncompressed up front and its rows Deflate-compressed behind them, so
+    // opening an archive reads only the aggregates; rows are inflated on first use by a detail listing and
+    // kept through a soft reference. Amounts in the aggregates are frozen at the rates in force when the
+    // period was sealed, in the tracker currency recorded with the segment.
+    // Layout (little-endian): header [magic, version, first day, last day, row count, metadata length,
+    // compressed length], metadata [reporting currency, categories, currencies as length-prefixed UTF-8,
+    // per-currency native totals, cells of (day, category, type, count, sum, min, max)], then the
+    // compressed column blocks amounts, reporting amounts, days, types, category ids, currency ids, timestamps.
+    static class Archive 
+    {
+        static final int MAGIC = 0x41544550; // "PETA"
+        static final int VERSION = 1;
+        private static final int HEADER_SIZE = 7 * 4;
+        private static final int CELL_SIZE = 4 + 4 + 1 + 4 + 8 + 8 + 8;
+        private static final int ROW_SIZE = 8 + 8 + 4 + 1 + 4 + 4 + 8;
+        static class Segment 
+        {
+            final Path file;
+            final int firstDay;
+            final int lastDay;
+            final int rows;
+            final String currency;
+            final String[] categories;
+            final String[] currencies;
+            final long[] currencyTotals;
+            // One aggregate per (day, category, type) that has rows, in day order
+            final int[] cellDays;
+            final int[] cellCategories;
+            final byte[] cellTypes;
+            final RollupCube.Aggregate[] cells;
+            private final long rowsOffset;
+            private final int compressedLength;
+            private java.lang.ref.SoftReference<ExpenseStore> loaded = new java.lang.ref.SoftReference<>(null);
+            Segment(Path file, ByteBuffer header, ByteBuffer metadata) 
+            {
+                this.file = file;
+                header.getInt();
+                header.getInt();
+                firstDay = header.getInt();
+                lastDay = header.getInt();
+                rows = header.getInt();
+                int metadataLength = header.getInt();
+                compressedLength = header.getInt();
+                rowsOffset = HEADER_SIZE + metadataLength;
+                currency = SnapshotFile.readString(metadata);
+                categories = new String[metadata.getInt()];
+                for (int i = 0; i < categories.length; i++) 
+                {
+                    categories[i] = SnapshotFile.readString(metadata);
+                }
+                currencies = new String[metadata.getInt()];
+                currencyTotals = new long[currencies.length];
+                for (int i = 0; i < currencies.length; i++) 
+                {
+                    currencies[i] = SnapshotFile.readString(metadata);
+                    currencyTotals[i] = metadata.getLong();
+                }
+                int count = metadata.getInt();
+                cellDays = new int[count];
+                cellCategories = new int[count];
+                cellTypes = new byte[count];
+                cells = new RollupCube.Aggregate[count];
+                for (int i = 0; i < count; i++) 
+                {
+                    cellDays[i] = metadata.getInt();
+                    cellCategories[i] = metadata.getInt();
+                    cellTypes[i] = metadata.get();
+                    RollupCube.Aggregate cell = new RollupCube.Aggregate();
+                    cell.count = metadata.getInt();
+                    cell.sum = metadata.getLong();
+                    cell.min = metadata.getLong();
+                    cell.max = metadata.getLong();
+                    cells[i] = cell;
+                }
+            }
+            public boolean overlaps(int startDay, int endDay) 
+            {
+                return firstDay <= endDay && lastDay >= startDay;
+            }
+            // The sealed rows in their original order, inflated on first use
+            public synchronized ExpenseStore rows() throws IOException 
+            {
+                ExpenseStore store = loaded.get();
+                if (store == null) 
+                {
+                    store = inflate();
+                    loaded = new java.lang.ref.SoftReference<>(store);
+                }
+                return store;
+            }
+            private ExpenseStore inflate() throws IOException 
+            {
+                ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+                try (FileChannel channel = FileChannel.open(file)) 
+                {
+                    readFully(channel, compressed, rowsOffset);
+                }
+                byte[] raw = new byte[rows * ROW_SIZE];
+                java.util.zip.Inflater inflater = new java.util.zip.Inflater();
+                try 
+                {
+                    inflater.setInput(compressed.array());
+                    int filled = 0;
+                    while (filled < raw.length && !inflater.finished()) 
+                    {
+                        int inflated = inflater.inflate(raw, filled, raw.length - filled);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) 
+                        {
+                            break;
+                        }
+                        filled += inflated;
+                    }
+                    if (filled != raw.length) 
+                    {
+                        throw new IOException("Corrupt segment: " + file);
+                    }
+                } 
+                catch (java.util.zip.DataFormatException e) 
+                {
+                    throw new IOException("Corrupt segment: " + file, e);
+                }
+                finally 
+                {
+                    inflater.end();
+                }
+                ByteBuffer in = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+                ExpenseStore store = new ExpenseStore(Math.max(rows, 1));
+                for (String category : categories) 
+                {
+                    store.categories.intern(category);
+                }
+                for (String code : currencies) 
+                {
+                    store.currencies.intern(code);
+                }
+                in.asLongBuffer().get(store.amounts, 0, rows);
+                in.position(in.position() + rows * 8);
+                in.asLongBuffer().get(store.reportingAmounts, 0, rows);
+                in.position(in.position() + rows * 8);
+                in.asIntBuffer().get(store.epochDays, 0, rows);
+                in.position(in.position() + rows * 4);
+                in.get(store.types, 0, rows);
+                in.asIntBuffer().get(store.categoryIds, 0, rows);
+                in.position(in.position() + rows * 4);
+                in.asIntBuffer().get(store.currencyIds, 0, rows);
+                in.position(in.position() + rows * 4);
+                in.asLongBuffer().get(store.timestamps, 0, rows);
+                store.size = rows;
+                return store;
+            }
+        }
+        final Path directory;
+        private final List<Segment> segments = new ArrayList<>();
+        private Archive(Path directory) 
+        {
+            this.directory = directory;
+        }
+        // Opens (creating if needed) an archive directory, reading every segment's aggregates but none of its rows
+        static Archive open(String directory) throws IOException 
+        {
+            Archive archive = new Archive(Paths.get(directory).toAbsolutePath());
+            Files.createDirectories(archive.directory);
+            for (int n = 1; ; n++) 
+            {
+                Path file = archive.file(n);
+                if (!Files.exists(file)) 
+                {
+                    break;
+                }
+                archive.segments.add(readSegment(file));
+            }
+            return archive;
+        }
+        public List<Segment> segments() 
+        {
+            return Collections.unmodifiableList(segments);
+        }
+        public long rows() 
+        {
+            long rows = 0;
+            for (Segment segment : segments) 
+            {
+                rows += segment.rows;
+            }
+            return rows;
+        }
+        // Last day any segment covers, or Integer.MIN_VALUE for an empty archive
+        public int lastDay() 
+        {
+            int last = Integer.MIN_VALUE;
+            for (Segment segment : segments) 
+            {
+                last = Math.max(last, segment.lastDay);
+            }
+            return last;
+        }
+        private Path file(int n) 
+        {
+            return directory.resolve("segment." + n + ".seg");
+        }
+        // Writes the given rows of the store (live, in ascending row order) as the next segment. Like
+        // snapshots it goes through a temporary file and an atomic rename, so a crash leaves no torn segment
+        public Segment seal(ExpenseStore store, IntList rows, String currency) throws IOException 
+        {
+            int count = rows.size();
+            // Segment-local dictionaries, so the file stands on its own
+            StringDictionary categories = new StringDictionary();
+            StringDictionary currencies = new StringDictionary();
+            ByteBuffer raw = SnapshotFile.buffer(count * ROW_SIZE);
+            int[] localCategories = new int[count];
+            int[] localCurrencies = new int[count];
+            TreeMap<Long, RollupCube.Aggregate> cells = new TreeMap<>();
+            ArrayList<Long> currencyTotals = new ArrayList<>();
+            int firstDay = Integer.MAX_VALUE;
+            int lastDay = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) 
+            {
+                int row = rows.get(i);
+                int day = store.epochDays[row];
+                localCategories[i] = categories.intern(store.category(row));
+                localCurrencies[i] = currencies.intern(store.currency(row));
+                if (localCurrencies[i] == currencyTotals.size()) 
+                {
+                    currencyTotals.add(0L);
+                }
+                currencyTotals.set(localCurrencies[i], Money.add(currencyTotals.get(localCurrencies[i]), store.amounts[row]));
+                // Day in the high half so cells come out in day order
+                long key = (long) day << 32 | (long) localCategories[i] * RollupCube.TYPES + store.types[row];
+                cells.computeIfAbsent(key, k -> new RollupCube.Aggregate()).include(store.reportingAmounts[row]);
+                firstDay = Math.min(firstDay, day);
+                lastDay = Math.max(lastDay, day);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putLong(store.amounts[rows.get(i)]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putLong(store.reportingAmounts[rows.get(i)]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putInt(store.epochDays[rows.get(i)]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.put(store.types[rows.get(i)]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putInt(localCategories[i]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putInt(localCurrencies[i]);
+            }
+            for (int i = 0; i < count; i++) 
+            {
+                raw.putLong(store.timestamps[rows.get(i)]);
+            }
+            byte[] compressed = deflate(raw.array());
+            ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+            SnapshotFile.writeString(metadata, currency);
+            metadata.writeBytes(SnapshotFile.buffer(4).putInt(categories.size()).array());
+            for (int id = 0; id < categories.size(); id++) 
+            {
+                SnapshotFile.writeString(metadata, categories.valueOf(id));
+            }
+            metadata.writeBytes(SnapshotFile.buffer(4).putInt(currencies.size()).array());
+            for (int id = 0; id < currencies.size(); id++) 
+            {
+                SnapshotFile.writeString(metadata, currencies.valueOf(id));
+                metadata.writeBytes(SnapshotFile.buffer(8).putLong(currencyTotals.get(id)).array());
+            }
+            ByteBuffer cellBlock = SnapshotFile.buffer(4 + cells.size() * CELL_SIZE).putInt(cells.size());
+            for (Map.Entry<Long, RollupCube.Aggregate> cell : cells.entrySet()) 
+            {
+                int key = (int) (cell.getKey() & 0xFFFFFFFFL);
+                RollupCube.Aggregate aggregate = cell.getValue();
+                cellBlock.putInt((int) (cell.getKey() >> 32)).putInt(key / RollupCube.TYPES).put((byte) (key % RollupCube.TYPES))
+                         .putInt(aggregate.count).putLong(aggregate.sum).putLong(aggregate.min).putLong(aggregate.max);
+            }
+            metadata.writeBytes(cellBlock.array());
+            ByteBuffer header = SnapshotFile.buffer(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(firstDay).putInt(lastDay).putInt(count)
+                  .putInt(metadata.size()).putInt(compressed.length).flip();
+            ByteBuffer[] sections = {header, ByteBuffer.wrap(metadata.toByteArray()), ByteBuffer.wrap(compressed)};
+            Path target = file(segments.size() + 1);
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, 
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) 
+            {
+                long remaining = HEADER_SIZE + metadata.size() + compressed.length;
+                while (remaining > 0) 
+                {
+                    remaining -= channel.write(sections);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Segment segment = readSegment(target);
+            segments.add(segment);
+            return segment;
+        }
+        private static byte[] deflate(byte[] raw) 
+        {
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED);
+            try 
+            {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(raw.length / 4, 64));
+                byte[] chunk = new byte[1 << 16];
+                while (!deflater.finished()) 
+                {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+                return out.toByteArray();
+            } 
+            finally 
+            {
+                deflater.end();
+            }
+        }
+        // Reads the header and metadata only
+        private static Segment readSegment(Path file) throws IOException 
+        {
+            try (FileChannel channel = FileChannel.open(file)) 
+            {
+                ByteBuffer header = SnapshotFile.buffer(HEADER_SIZE);
+                readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) 
+                {
+                    throw new IOException("Not a version " + VERSION + " archive segment: " + file);
+                }
+                int metadataLength = header.getInt(20);
+                if (metadataLength < 0 || HEADER_SIZE + (long) metadataLength + header.getInt(24) > channel.size()) 
+                {
+                    throw new IOException("Truncated segment: " + file);
+                }
+                ByteBuffer metadata = SnapshotFile.buffer(metadataLength);
+                readFully(channel, metadata, HEADER_SIZE);
+                metadata.flip();
+                try 
+                {
+                    return new Segment(file, header, metadata);
+                } 
+                catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) 
+                {
+                    throw new IOException("Corrupt segment: " + file, e);
+                }
+            }
+        }
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException 
+        {
+            while (buffer.hasRemaining()) 
+            {
+                if (channel.read(buffer, position + buffer.position()) < 0) 
+                {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+        }
+    }
+    // Per-month and per-category budgets, checked off the ingestion path. Writers publish spend changes
+    // to a bounded queue and a single consumer thread keeps the running totals, raising an alert to the
+    // listeners the first time a month or a category within it crosses 50, 80 or 100% of its limit.
+    // A full queue makes the writer wait up to overflowWaitNanos and then drops the event, counting it,
+    // so ingestion latency stays bounded; the next reset (any bulk change) squares the totals again.
+    static class BudgetMonitor implements Closeable 
+    {
+        static final int[] THRESHOLDS = {50, 80, 100};
+        static final int DEFAULT_CAPACITY = 8192;
+        static final long DEFAULT_OVERFLOW_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        // After waking, the consumer lets events pile up this long so busy writers rarely have to signal it
+        static final long BATCH_INTERVAL_MILLIS = 1;
+        interface AlertListener 
+        {
+            void onAlert(Alert alert);
+        }
+        // A threshold crossing; category is null for the whole month. Amounts in minor units of the tracker currency
+        static class Alert 
+        {
+            final int year;
+            final int month;
+            final String category;
+            final int percent;
+            final long spent;
+            final long limit;
+            Alert(int year, int month, String category, int percent, long spent, long limit) 
+            {
+                this.year = year;
+                this.month = month;
+                this.category = category;
+                this.percent = percent;
+                this.spent = spent;
+                this.limit = limit;
+            }
+        }
+        // A change of spend on one day in one category, a new monthly limit (category == null, totals == null)
+        // or (totals != null) a replacement of all totals and the limit
+        private static class Event 
+        {
+            final int epochDay;
+            final int categoryId;
+            final String category;
+            final long delta;
+            final long limit;
+            final Map<Integer, MonthBudget> totals;
+            Event(int epochDay, int categoryId, String category, long delta, long limit, Map<Integer, MonthBudget> totals) 
+            {
+                this.epochDay = epochDay;
+                this.categoryId = categoryId;
+                this.category = category;
+                this.delta = delta;
+                this.limit = limit;
+                this.totals = totals;
+            }
+        }
+        // Running spend of one month; level is the index of the highest threshold already alerted, -1 for none
+        static class MonthBudget 
+        {
+            long spent;
+            int level = -1;
+            final HashMap<Integer, CategoryBudget> categories = new HashMap<>();
+        }
+        static class CategoryBudget 
+        {
+            final String name;
+            long spent;
+            int level = -1;
+            CategoryBudget(String name) 
+            {
+                this.name = name;
+            }
+        }
+        private final ArrayBlockingQueue<Event> queue;
+        private final ConcurrentSkipListMap<String, Long> categoryLimits = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final CopyOnWriteArrayList<AlertListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile long overflowWaitNanos = DEFAULT_OVERFLOW_WAIT_NANOS;
+        private final LongAdder published = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder alerts = new LongAdder();
+        // Consumer state: only the consumer thread touches months and the limit it checks them against,
+        // which changes in queue order so every event is judged by the limit in force when it was published
+        private final HashMap<Integer, MonthBudget> months = new HashMap<>();
+        private long monthlyLimit;
+        private long enqueued;
+        private long processed;
+        private Thread consumer;
+        private boolean closed;
+        public BudgetMonitor(long monthlyLimit) 
+        {
+            this(monthlyLimit, DEFAULT_CAPACITY);
+        }
+        public BudgetMonitor(long monthlyLimit, int capacity) 
+        {
+            this.monthlyLimit = monthlyLimit;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+        public void addListener(AlertListener listener) 
+        {
+            listeners.add(listener);
+        }
+        public void removeListener(AlertListener listener) 
+        {
+            listeners.remove(listener);
+        }
+        // Limit per month for one category, in minor units of the tracker currency; zero or less removes it
+        public void setCategoryLimit(String category, long limit) 
+        {
+            if (limit > 0) 
+            {
+                categoryLimits.put(category, limit);
+            }
+            else 
+            {
+                categoryLimits.remove(category);
+            }
+        }
+        public void setOverflowWait(long timeout, TimeUnit unit) 
+        {
+            overflowWaitNanos = unit.toNanos(timeout);
+        }
+        public long published() 
+        {
+            return published.sum();
+        }
+        public long dropped() 
+        {
+            return dropped.sum();
+        }
+        public long alertsRaised() 
+        {
+            return alerts.sum();
+        }
+        // Spend of delta (negative for deductions) on epochDay in the category; false if it was dropped
+        public boolean publish(int epochDay, int categoryId, String category, long delta) 
+        {
+            Event event = new Event(epochDay, categoryId, category, delta, 0, null);
+            try 
+            {
+                if (queue.offer(event) || queue.offer(event, overflowWaitNanos, TimeUnit.NANOSECONDS)) 
+                {
+                    enqueued(1);
+                    return true;
+                }
+            } 
+            catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+            }
+            dropped.increment();
+            return false;
+        }
+        // Takes effect from the next spend change of each month; waits for room rather than dropping
+        public void setMonthlyLimit(long monthlyLimit) 
+        {
+            put(new Event(0, 0, null, 0, monthlyLimit, null));
+        }
+        // Replaces every running total and the limit without raising alerts; waits for room rather than
+        // dropping. totals maps year * 12 + month - 1 to that month's spend
+        public void reset(Map<Integer, MonthBudget> totals, long monthlyLimit) 
+        {
+            put(new Event(0, 0, null, 0, monthlyLimit, totals));
+        }
+        // Waits until the consumer has applied everything published so far
+        public void flush() 
+        {
+            synchronized (this) 
+            {
+                long target = enqueued;
+                while (processed < target && !closed) 
+                {
+                    try 
+                    {
+                        wait();
+                    } 
+                    catch (InterruptedException e) 
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+        @Override
+        public void close() 
+        {
+            Thread running;
+            synchronized (this) 
+            {
+                closed = true;
+                running = consumer;
+                notifyAll();
+            }
+            if (running != null) 
+            {
+                running.interrupt();
+                try 
+                {
+                    running.join();
+                } 
+                catch (InterruptedException e) 
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        private void put(Event event) 
+        {
+            try 
+            {
+                queue.put(event);
+                enqueued(1);
+            } 
+            catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        static int monthKey(int epochDay) 
+        {
+            return DateCodec.yearOf(epochDay) * 12 + DateCodec.monthOf(epochDay) - 1;
+        }
+        // The consumer starts with the first event, so trackers that never take one cost no thread
+        private synchronized void enqueued(int count) 
+        {
+            published.add(count);
+            enqueued += count;
+            if (consumer == null && !closed) 
+            {
+                consumer = new Thread(this::runConsumer, "expense-budget-monitor");
+                consumer.setDaemon(true);
+                consumer.start();
+            }
+        }
+        private void runConsumer() 
+        {
+            ArrayList<Event> batch = new ArrayList<>();
+            while (true) 
+            {
+                try 
+                {
+                    batch.add(queue.take());
+                    Thread.sleep(BATCH_INTERVAL_MILLIS);
+                } 
+                catch (InterruptedException e) 
+                {
+                    return;
+                }
+                queue.drainTo(batch);
+                for (Event event : batch) 
+                {
+                    apply(event);
+                }
+                synchronized (this) 
+                {
+                    processed += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+            }
+        }
+        private void apply(Event event) 
+        {
+            if (event.totals != null) 
+            {
+                months.clear();
+                months.putAll(event.totals);
+                monthlyLimit = event.limit;
+                for (MonthBudget budget : months.values()) 
+                {
+                    budget.level = level(budget.spent, monthlyLimit);
+                    for (CategoryBudget category : budget.categories.values()) 
+                    {
+                        category.level = level(category.spent, categoryLimits.getOrDefault(category.name, 0L));
+                    }
+                }
+                return;
+            }
+            if (event.category == null) 
+            {
+                monthlyLimit = event.limit;
+                return;
+            }
+            int key = monthKey(event.epochDay);
+            MonthBudget budget = months.computeIfAbsent(key, k -> new MonthBudget());
+            budget.spent = Money.add(budget.spent, event.delta);
+            budget.level = check(budget.level, budget.spent, monthlyLimit, key, null);
+            CategoryBudget category = budget.categories.computeIfAbsent(event.categoryId, id -> new CategoryBudget(event.category));
+            category.spent = Money.add(category.spent, event.delta);
+            Long categoryLimit = categoryLimits.get(category.name);
+            category.level = check(category.level, category.spent, categoryLimit == null ? 0 : categoryLimit, key, category.name);
+        }
+        // Alerts for each threshold newly crossed upwards; falling back below one re-arms it
+        private int check(int level, long spent, long limit, int key, String category) 
+        {
+            int now = level(spent, limit);
+            for (int i = level + 1; i <= now; i++) 
+            {
+                Alert alert = new Alert(key / 12, key % 12 + 1, category, THRESHOLDS[i], spent, limit);
+                alerts.increment();
+                for (AlertListener listener : listeners) 
+                {
+                    try 
+                    {
+                        listener.onAlert(alert);
+                    } 
+                    catch (RuntimeException e) 
+                    {
+                        // A failing listener must not stop the others or the consumer
+                    }
+                }
+            }
+            return now;
+        }
+        // Index of the highest threshold spent has reached, -1 for none or without a limit
+        static int level(long spent, long limit) 
+        {
+            int level = -1;
+            if (limit <= 0) 
+            {
+                return level;
+            }
+            for (int i = 0; i < THRESHOLDS.length; i++) 
+            {
+                // spent * 100 >= limit * threshold, without the products overflowing
+                long reached = limit / 100 * THRESHOLDS[i] + (limit % 100 * THRESHOLDS[i] + 99) / 100;
+                if (spent >= reached) 
+                {
+                    level = i;
+                }
+            }
+            return level;
+        }
+    }
+    // Always-on operation metrics: a latency histogram per timed tracker operation plus gauges that
+    // are sampled when read. Recording costs two nanoTime calls and a few uncontended atomic adds, so it
+    // stays on in production; readings go out through JMX (register), dump() and a periodic text dump.
+    static class Metrics implements javax.management.DynamicMBean 
+    {
+        // Log-linear buckets in the style of HdrHistogram: values below 2^SUB_BITS get a bucket each and every
+        // power of two above is split into 2^SUB_BITS buckets, so a reading is within ~3% of the recorded value.
+        // Recording is lock-free; a snapshot copies the buckets without stopping writers.
+        static class Histogram 
+        {
+            static final int SUB_BITS = 5;
+            static final int SUB_BUCKETS = 1 << SUB_BITS;
+            static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+            private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+            private final LongAdder sum = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+            public void record(long value) 
+            {
+                record(value, 1);
+            }
+            // Records value as weight occurrences of it
+            void record(long value, int weight) 
+            {
+                value = Math.max(value, 0);
+                counts.getAndAdd(index(value), weight);
+                sum.add(value * weight);
+                long seen = max.get();
+                while (value > seen && !max.compareAndSet(seen, value)) 
+                {
+                    seen = max.get();
+                }
+            }
+            // Records the time since started, a value from Metrics.start(); 0 means recording was off
+            public void recordSince(long started) 
+            {
+                if (started != 0) 
+                {
+                    record(System.nanoTime() - started);
+                }
+            }
+            // As recordSince, for a value from Metrics.startSampled() that stands for SAMPLE_EVERY calls
+            public void recordSampledSince(long started) 
+            {
+                if (started != 0) 
+                {
+                    record(System.nanoTime() - started, SAMPLE_EVERY);
+                }
+            }
+            static int index(long value) 
+            {
+                int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+                if (shift < 0) 
+                {
+                    return (int) value;
+                }
+                return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+            }
+            // Largest value that falls in the bucket, so percentiles never understate
+            static long highestInBucket(int index) 
+            {
+                if (index < SUB_BUCKETS) 
+                {
+                    return index;
+                }
+                int shift = index / SUB_BUCKETS - 1;
+                long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+                return ((mantissa + 1) << shift) - 1;
+            }
+            public Snapshot snapshot() 
+            {
+                long[] copy = new long[BUCKETS];
+                long count = 0;
+                for (int i = 0; i < BUCKETS; i++) 
+                {
+                    copy[i] = counts.get(i);
+                    count += copy[i];
+                }
+                return new Snapshot(copy, count, sum.sum(), max.get());
+            }
+        }
+        static class Snapshot 
+        {
+            private final long[] counts;
+            final long count;
+            final long sum;
+            final long max;
+            Snapshot(long[] counts, long count, long sum, long max) 
+            {
+                this.counts = counts;
+                this.count = count;
+                this.sum = sum;
+                this.max = max;
+            }
+            public long mean() 
+            {
+                return count == 0 ? 0 : sum / count;
+            }
+            // Value at or below which percent of the recorded values fall, capped at the exact maximum
+            public long percentile(double percent) 
+            {
+                if (count == 0) 
+                {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+                long seen = 0;
+                for (int i = 0; i < counts.length; i++) 
+                {
+                    seen += counts[i];
+                    if (seen >= rank) 
+                    {
+                        return Math.min(Histogram.highestInBucket(i), max);
+                    }
+                }
+                return max;
+            }
+        }
+        private final Map<String, Histogram> timers = new LinkedHashMap<>();
+        private final Map<String, java.util.function.LongSupplier> gauges = new LinkedHashMap<>();
+        private volatile boolean enabled = true;
+        // Reads served from running totals and rollups cost little more than the two clock reads around them,
+        // so those time one call in SAMPLE_EVERY (picked at random) and count it SAMPLE_EVERY times
+        static final int SAMPLE_EVERY = 64;
+        private ScheduledExecutorService dumper;
+        private javax.management.ObjectName registeredName;
+        public synchronized Histogram timer(String name) 
+        {
+            return timers.computeIfAbsent(name, key -> new Histogram());
+        }
+        public synchronized void gauge(String name, java.util.function.LongSupplier value) 
+        {
+            gauges.put(name, value);
+        }
+        // Start of a timed operation for Histogram.recordSince; 0 while recording is switched off
+        public long start() 
+        {
+            return enabled ? System.nanoTime() : 0;
+        }
+        // As start, but 0 for all but one call in SAMPLE_EVERY; pair with Histogram.recordSampledSince
+        public long startSampled() 
+        {
+            return enabled && (ThreadLocalRandom.current().nextInt() & (SAMPLE_EVERY - 1)) == 0 ? System.nanoTime() : 0;
+        }
+        public void setEnabled(boolean enabled) 
+        {
+            this.enabled = enabled;
+        }
+        // Every reading by name: count, mean and percentiles in nanoseconds per timer, then the gauges
+        public synchronized Map<String, Long> values() 
+        {
+            Map<String, Long> values = new LinkedHashMap<>();
+            for (Map.Entry<String, Histogram> entry : timers.entrySet()) 
+            {
+                Snapshot snapshot = entry.getValue().snapshot();
+                String name = entry.getKey();
+                values.put(name + ".count", snapshot.count);
+                values.put(name + ".meanNanos", snapshot.mean());
+                values.put(name + ".p50Nanos", snapshot.percentile(50));
+                values.put(name + ".p99Nanos", snapshot.percentile(99));
+                values.put(name + ".p999Nanos", snapshot.percentile(99.9));
+                values.put(name + ".maxNanos", snapshot.max);
+            }
+            for (Map.Entry<String, java.util.function.LongSupplier> entry : gauges.entrySet()) 
+            {
+                values.put(entry.getKey(), entry.getValue().getAsLong());
+            }
+            return values;
+        }
+        // One line per timer that has recorded anything, then one per gauge
+        public synchronized String dump() 
+        {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Histogram> entry : timers.entrySet()) 
+            {
+                Snapshot snapshot = entry.getValue().snapshot();
+                if (snapshot.count == 0) 
+                {
+                    continue;
+                }
+                text.append(String.format("%-22s count=%d mean=%s p50=%s p99=%s p99.9=%s max=%s%n", entry.getKey(), snapshot.count, duration(snapshot.mean()),
+                        duration(snapshot.percentile(50)), duration(snapshot.percentile(99)), duration(snapshot.percentile(99.9)), duration(snapshot.max)));
+            }
+            for (Map.Entry<String, java.util.function.LongSupplier> entry : gauges.entrySet()) 
+            {
+                text.append(String.format("%-22s %d%n", entry.getKey(), entry.getValue().getAsLong()));
+            }
+            return text.toString();
+        }
+        static String duration(long nanos) 
+        {
+            if (nanos < 1_000) 
+            {
+                return nanos + "ns";
+            }
+            if (nanos < 1_000_000) 
+            {
+                return String.format("%.1fus", nanos / 1e3);
+            }
+            if (nanos < 1_000_000_000) 
+            {
+                return String.format("%.1fms", nanos / 1e6);
+            }
+            return String.format("%.2fs", nanos / 1e9);
+        }
+        // Writes dump() to out every periodSeconds from a daemon thread until stopDump or close
+        public synchronized void startDump(PrintStream out, long periodSeconds) 
+        {
+            stopDump();
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> 
+            {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> out.print("--- metrics " + java.time.LocalDateTime.now() + "\n" + dump()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+        public synchronized void stopDump() 
+        {
+            if (dumper != null) 
+            {
+                dumper.shutdownNow();
+                dumper = null;
+            }
+        }
+        // Publishes the readings on the platform MBean server as expensetracker:type=Metrics,name=<name>
+        public synchronized void register(String name) 
+        {
+            try 
+            {
+                javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+                javax.management.ObjectName objectName = new javax.management.ObjectName("expensetracker", new Hashtable<>(Map.of("type", "Metrics", "name", name)));
+                if (server.isRegistered(objectName)) 
+                {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(this, objectName);
+                registeredName = objectName;
+            } 
+            catch (javax.management.JMException e) 
+            {
+                System.out.println("Error registering metrics: " + e.getMessage());
+            }
+        }
+        public synchronized void close() 
+        {
+            stopDump();
+            if (registeredName != null) 
+            {
+                try 
+                {
+                    java.lang.management.ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+                } 
+                catch (javax.management.JMException e) 
+                {
+                    // Already gone
+                }
+                registeredName = null;
+            }
+        }
+        // JMX view: every reading is a read-only Long attribute; the "dump" operation returns the text dump
+        @Override
+        public Object getAttribute(String attribute) throws javax.management.AttributeNotFoundException 
+        {
+            Long value = values().get(attribute);
+            if (value == null) 
+            {
+                throw new javax.management.AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+        @Override
+        public javax.management.AttributeList getAttributes(String[] attributes) 
+        {
+            Map<String, Long> values = values();
+            javax.management.AttributeList list = new javax.management.AttributeList();
+            for (String attribute : attributes) 
+            {
+                if (values.containsKey(attribute)) 
+                {
+                    list.add(new javax.management.Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+        @Override
+        public void setAttribute(javax.management.Attribute attribute) throws javax.management.AttributeNotFoundException 
+        {
+            throw new javax.management.AttributeNotFoundException("read-only: " + attribute.getName());
+        }
+        @Override
+        public javax.management.AttributeList setAttributes(javax.management.AttributeList attributes) 
+        {
+            return new javax.management.AttributeList();
+        }
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws javax.management.ReflectionException 
+        {
+            if (actionName.equals("dump")) 
+            {
+                return dump();
+            }
+            throw new javax.management.ReflectionException(new NoSuchMethodException(actionName));
+        }
+        @Override
+        public javax.management.MBeanInfo getMBeanInfo() 
+        {
+            Set<String> names = values().keySet();
+            javax.management.MBeanAttributeInfo[] attributes = new javax.management.MBeanAttributeInfo[names.size()];
+            int i = 0;
+            for (String name : names) 
+            {
+                attributes[i++] = new javax.management.MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+            }
+            javax.management.MBeanOperationInfo[] operations = {new javax.management.MBeanOperationInfo("dump", "Text dump of all readings",
+                    new javax.management.MBeanParameterInfo[0], "java.lang.String", javax.management.MBeanOperationInfo.INFO)};
+            return new javax.management.MBeanInfo(getClass().getName(), "Expense tracker operation metrics", attributes, null, operations, null);
+        }
+    }
+    // Class to represent the Expense Tracker
+    static class ExpenseTracker
+    {
+        ExpenseStore expenses;
+        // Running totals; like the rows they sum they only change under the write lock, so a report holding
+        // the read lock reads them consistent with the store and the rollups.
+        // The limit and all totals are in minor units of the tracker currency (see Money).
+        LongAdder totalExpenses;
+        volatile long monthlyLimit;
+        ConcurrentHashMap<String, LongAdder> categoryTotals;
+        // Row totals in each currency's own minor units, keyed by the currency as spelled on the rows
+        final ConcurrentHashMap<String, LongAdder> currencyTotals = new ConcurrentHashMap<>();
+        // Rates into the tracker currency; every tracker-currency amount above goes through it
+        final RateTable rates = new RateTable();
+        Map<String, Double> userProfileExpenses;
+        volatile String currency;
+        volatile int scale;
+        // Recurring rules; their occurrences are folded into period reports without being stored as rows
+        RecurringSchedule recurring;
+        DateIndex dateIndex;
+        CategoryIndex categoryIndex;
+        AmountIndex amountIndex;
+        // Order of the full listing; sorting only switches views, the store keeps insertion order
+        enum RowOrder 
+        {
+            INSERTION, AMOUNT, DATE
+        }
+        volatile RowOrder viewOrder = RowOrder.INSERTION;
+        // Per-period aggregates; like the indexes it only changes under the write lock
+        RollupCube rollups;
+        // Scans for ranges the cube does not cover, split across the common fork-join pool on large ledgers
+        final ReportEngine reports = new ReportEngine();
+        // Per-month and per-category limit checks, fed asynchronously by adds and deductions
+        final BudgetMonitor budgets;
+        // Bumped after every change a report could see, so cached results can tell they are stale
+        final LongAdder version = new LongAdder();
+        // Latency of each public operation, timed at the quiet API so the menu, batch runs and the query
+        // service all count; gauges over the ledger and its indexes are registered by the constructor
+        final Metrics metrics = new Metrics();
+        private final Metrics.Histogram addExpenseTimer = metrics.timer("addExpense");
+        private final Metrics.Histogram deductExpenseTimer = metrics.timer("deductExpense");
+        private final Metrics.Histogram loadTimer = metrics.timer("loadFromFile");
+        private final Metrics.Histogram saveTimer = metrics.timer("saveToFile");
+        private final Metrics.Histogram saveSnapshotTimer = metrics.timer("saveSnapshot");
+        private final Metrics.Histogram loadSnapshotTimer = metrics.timer("loadSnapshot");
+        private final Metrics.Histogram ratesTimer = metrics.timer("loadExchangeRates");
+        private final Metrics.Histogram recurringTimer = metrics.timer("addRecurringExpense");
+        private final Metrics.Histogram totalTimer = metrics.timer("totalReport");
+        private final Metrics.Histogram categoryTimer = metrics.timer("categoryReport");
+        private final Metrics.Histogram monthlyTimer = metrics.timer("monthlyReport");
+        private final Metrics.Histogram yearlyTimer = metrics.timer("yearlyReport");
+        private final Metrics.Histogram summarizeTimer = metrics.timer("customReport");
+        private final Metrics.Histogram largestTimer = metrics.timer("largestExpenses");
+        private final Metrics.Histogram filterCategoryTimer = metrics.timer("filterByCategory");
+        private final Metrics.Histogram filterDateTimer = metrics.timer("filterByDate");
+        private final Metrics.Histogram listTimer = metrics.timer("displayAllExpenses");
+        private final Metrics.Histogram recurringReportTimer = metrics.timer("recurringReport");
+        private final Metrics.Histogram archiveTimer = metrics.timer("archivePeriods");
+        private final Metrics.Histogram archivedListTimer = metrics.timer("displayArchivedExpenses");
+        // Write-ahead journal; null until openJournal is called
+        Journal journal;
+        Path journalDirectory;
+        // Sealed segments of closed periods; null until openArchive is called
+        Archive archive;
+        long journalGeneration;
+        static final long JOURNAL_COMMIT_INTERVAL_MILLIS = 10;
+        static final long JOURNAL_COMPACTION_BYTES = 64L << 20;
+        // Readers share the read lock; structural changes (and draining pending rows) take the write lock.
+        // In concurrent mode addExpense only takes the read lock and appends to a lock-free queue; drain moves
+        // the queued rows into the store, indexes and totals together under the write lock before any report
+        // runs, so a report reading under the read lock sees one consistent set of rows.
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final boolean concurrent;
+        final ConcurrentLinkedQueue<PendingExpense> pending = new ConcurrentLinkedQueue<>();
+        static class PendingExpense 
+        {
+            final String category;
+            final long amount;
+            final int epochDay;
+            final ExpenseType type;
+            final String currency;
+            final long timestamp;
+            PendingExpense(String category, long amount, int epochDay, ExpenseType type, String currency, long timestamp) 
+            {
+                this.category = category;
+                this.amount = amount;
+                this.epochDay = epochDay;
+                this.type = type;
+                this.currency = currency;
+                this.timestamp = timestamp;
+            }
+        }
+        public ExpenseTracker(double monthlyLimit, String currency) 
+        {
+            this(monthlyLimit, currency, false);
+        }
+        public ExpenseTracker(double monthlyLimit, String currency, boolean concurrent) 
+        {
+            this.concurrent = concurrent;
+            this.expenses = new ExpenseStore();
+            this.totalExpenses = new LongAdder();
+            this.scale = Money.scaleOf(currency);
+            this.monthlyLimit = Money.toMinor(monthlyLimit, scale);
+            this.categoryTotals = new ConcurrentHashMap<>();
+            this.rates.setReportingCurrency(currency);
+            this.userProfileExpenses = new HashMap<>();
+            this.currency = currency;
+            this.recurring = new RecurringSchedule();
+            this.dateIndex = new DateIndex();
+            this.categoryIndex = new CategoryIndex();
+            this.amountIndex = new AmountIndex();
+            this.rollups = new RollupCube();
+            this.budgets = new BudgetMonitor(this.monthlyLimit);
+            this.budgets.addListener(this::printAlert);
+            registerGauges();
+        }
+        // Sizes are read under the read lock, without draining, so a sample never waits on or triggers a merge
+        private void registerGauges() 
+        {
+            metrics.gauge("rows", () -> sample(() -> expenses.size() - expenses.removedCount));
+            metrics.gauge("tombstones", () -> sample(() -> expenses.removedCount));
+            metrics.gauge("categories", () -> sample(() -> expenses.categories.size()));
+            metrics.gauge("recurringRules", () -> sample(() -> recurring.size()));
+            metrics.gauge("dateIndexDays", () -> sample(() -> dateIndex.days()));
+            metrics.gauge("amountIndexKeys", () -> sample(() -> amountIndex.keys()));
+            metrics.gauge("storeBytes", () -> sample(() -> expenses.estimatedBytes()));
+            metrics.gauge("indexBytes", () -> sample(() -> 
+            {
+                int indexed = expenses.size() - expenses.removedCount;
+                return dateIndex.estimatedBytes(indexed) + amountIndex.estimatedBytes(indexed) + categoryIndex.estimatedBytes();
+            }));
+            metrics.gauge("archiveSegments", () -> sample(() -> archive == null ? 0 : archive.segments().size()));
+            metrics.gauge("archivedRows", () -> sample(() -> archive == null ? 0 : archive.rows()));
+            metrics.gauge("version", version::sum);
+            metrics.gauge("budgetEventsPublished", budgets::published);
+            metrics.gauge("budgetEventsDropped", budgets::dropped);
+            metrics.gauge("budgetAlerts", budgets::alertsRaised);
+            metrics.gauge("heapUsedBytes", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        }
+        private long sample(java.util.function.LongSupplier reading) 
+        {
+            lock.readLock().lock();
+            try 
+            {
+                return reading.getAsLong();
+            } 
+            finally 
+            {
+                lock.readLock().unlock();
+            }
+        }
+        public void addExpense(String category, double amount, String date, ExpenseType type) 
+        {
+            addExpense(category, Money.toMinor(amount, scale), date, type);
+        }
+        // Amount in minor units of the tracker currency
+        public void addExpense(String category, long amount, String date, ExpenseType type) 
+        {
+            if (recordExpense(category, amount, date, type)) 
+            {
+                System.out.println("Expense added successfully!");
+            }
+            else 
+            {
+                System.out.println("Amount should be greater than zero.");
+            }
+        }
+        // addExpense without the console: false, adding nothing, unless amount > 0; a malformed date
+        // throws DateTimeParseException
+        public boolean recordExpense(String category, long amount, String date, ExpenseType type) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                if (amount > 0) 
+                {
+                    int epochDay = toEpochDay(date);
+                    long timestamp = ExpenseStore.encodeTimestamp(java.time.LocalDateTime.now());
+                    if (concurrent) 
+                    {
+                        lock.readLock().lock();
+                        try 
+                        {
+                            String currency = this.currency;
+                            int categoryId = expenses.categories.intern(category);
+                            // Queue and journal in one step, so replay meets the adds in the order drain stores them
+                            synchronized (pending) 
+                            {
+                                pending.add(new PendingExpense(category, amount, epochDay, type, currency, timestamp));
+                                if (journal != null) 
+                                {
+                                    journal.logAdd(category, amount, epochDay, type, currency, timestamp);
+                                }
+                            }
+                            // Under the lock, so a bulk reset of the budgets cannot slip in between
+                            budgets.publish(epochDay, categoryId, expenses.categories.valueOf(categoryId), amount);
+                            version.increment();
+                        } 
+                        finally 
+                        {
+                            lock.readLock().unlock();
+                        }
+                    }
+                    else 
+                    {
+                        lock.writeLock().lock();
+                        try 
+                        {
+                            insertExpense(category, amount, epochDay, type, currency, timestamp);
+                            if (journal != null) 
+                            {
+                                journal.logAdd(category, amount, epochDay, type, currency, timestamp);
+                                compactJournalIfNeeded();
+                            }
+                            int categoryId = expenses.categories.idOf(category);
+                            budgets.publish(epochDay, categoryId, expenses.categories.valueOf(categoryId), amount);
+                            version.increment();
+                        } 
+                        finally 
+                        {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                    return true;
+                }
+                return false;
+            } 
+            finally 
+            {
+                addExpenseTimer.recordSince(started);
+            }
+        }
+        // Appends a row and updates the indexes and totals; shared by addExpense and journal replay
+        // Amount is in minor units of the row currency
+        private void insertExpense(String category, long amount, int epochDay, ExpenseType type, String currency, long timestamp) 
+        {
+            int row = appendRow(category, amount, epochDay, type, currency, timestamp);
+            addToTotals(expenses.categoryIds[row], expenses.reportingAmounts[row], expenses.currency(row), amount);
+        }
+        private int appendRow(String category, long amount, int epochDay, ExpenseType type, String currency, long timestamp) 
+        {
+            int row = expenses.add(category, amount, epochDay, type, currency, timestamp);
+            RateTable.Rate rate = rates.rate(currency, epochDay);
+            long converted = rate.toReporting(amount);
+            expenses.reportingAmounts[row] = converted;
+            dateIndex.add(epochDay, row, converted);
+            categoryIndex.add(expenses.categoryIds[row], row, rate.coverable(amount));
+            rollups.add(epochDay, expenses.categoryIds[row], type, converted);
+            amountIndex.add(converted, row);
+            return row;
+        }
+        // Converted is in tracker minor units, amount in the row currency's own
+        private void addToTotals(int categoryId, long converted, String currency, long amount) 
+        {
+            totalExpenses.add(converted);
+            currencyTotals.computeIfAbsent(currency, key -> new LongAdder()).add(amount);
+            // Totals are keyed by the interned spelling so "Food" and "food" accumulate together
+            String categoryName = expenses.categories.valueOf(categoryId);
+            categoryTotals.computeIfAbsent(categoryName, key -> new LongAdder()).add(converted);
+        }
+        // Tracker-currency amount as display text, e.g. "USD12.50"
+        String format(long minor) 
+        {
+            return currency + Money.format(minor, scale);
+        }
+        // Moves rows queued by concurrent adds into the store, indexes and totals so reports see all of them
+        void drain() 
+        {
+            if (pending.isEmpty()) 
+            {
+                return;
+            }
+            lock.writeLock().lock();
+            try 
+            {
+                PendingExpense next;
+                while ((next = pending.poll()) != null) 
+                {
+                    insertExpense(next.category, next.amount, next.epochDay, next.type, next.currency, next.timestamp);
+                }
+                if (journal != null) 
+                {
+                    compactJournalIfNeeded();
+                }
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        public void addRecurringExpense(String category, double amount, String startDate, int intervalDays) 
+        {
+            addRecurringExpense(category, Money.toMinor(amount, scale), startDate, intervalDays);
+        }
+        // Amount in minor units of the tracker currency, charged every intervalDays from startDate on
+        public void addRecurringExpense(String category, long amount, String startDate, int intervalDays) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                if (amount <= 0) 
+                {
+                    System.out.println("Amount should be greater than zero.");
+                    return;
+                }
+                if (intervalDays < 1) 
+                {
+                    System.out.println("Interval should be at least one day.");
+                    return;
+                }
+                int startDay = DateCodec.parse(startDate);
+                if (startDay == DateCodec.INVALID) 
+                {
+                    System.out.println("Invalid start date: " + startDate);
+                    return;
+                }
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    insertRecurringExpense(category, amount, startDay, intervalDays);
+                    version.increment();
+                    if (journal != null) 
+                    {
+                        journal.logRecurring(category, amount, startDate, intervalDays);
+                        compactJournalIfNeeded();
+                    }
+                    System.out.println("Recurring expense added for category: " + category + " with an interval of " + intervalDays + " days.");
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                recurringTimer.recordSince(started);
+            }
+        }
+        private void insertRecurringExpense(String category, long amount, int startDay, int intervalDays) 
+        {
+            recurring.add(category, amount, startDay, intervalDays, currency, ExpenseStore.encodeTimestamp(java.time.LocalDateTime.now()));
+        }
+        public void generateRecurringReport() 
+        {
+            generateRecurringReport(ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        public void generateRecurringReport(ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    if (recurring.isEmpty()) 
+                    {
+                        out.message("No recurring expenses recorded.");
+                    }
+                     else 
+                    {
+                        out.message("Recurring Expense Breakdown:");
+                        ArrayList<IntList> rulesByCategory = new ArrayList<>();
+                        for (int rule = 0; rule < recurring.size(); rule++) 
+                        {
+                            int categoryId = recurring.categoryIds[rule];
+                            while (rulesByCategory.size() <= categoryId) 
+                            {
+                                rulesByCategory.add(new IntList());
+                            }
+                            rulesByCategory.get(categoryId).add(rule);
+                        }
+                        int today = today();
+                        for (int categoryId = 0; categoryId < rulesByCategory.size(); categoryId++) 
+                        {
+                            IntList rules = rulesByCategory.get(categoryId);
+                            if (rules.isEmpty()) 
+                            {
+                                continue;
+                            }
+                            out.message("Category: " + recurring.categories.valueOf(categoryId));
+                            for (int i = 0; i < rules.size(); i++) 
+                            {
+                                int rule = rules.get(i);
+                                int next = recurring.nextOccurrence(rule, today);
+                                out.row(recurring, rule, recurring.startDays[rule], 
+                                        (recurring.intervals[rule] == 0 ? "Once" : "Every " + recurring.intervals[rule] + " days") 
+                                        + (next == Integer.MIN_VALUE ? "" : ", Next: " + DateCodec.format(next)));
+                            }
+                        }
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error writing report: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                recurringReportTimer.recordSince(started);
+            }
+        }
+        public void deductExpense(String category, double amount) 
+        {
+            deductExpense(category, Money.toMinor(amount, scale));
+        }
+        // Amount in minor units of the tracker currency
+        public void deductExpense(String category, long amount) 
+        {
+            switch (recordDeduction(category, amount)) 
+            {
+                case INVALID_AMOUNT:
+                    System.out.println("Invalid amount to deduct.");
+                    break;
+                case NO_MATCH:
+                    System.out.println("No matching expense found or insufficient amount in the category.");
+                    break;
+                default:
+                    System.out.println("Expense deducted successfully!");
+            }
+        }
+        enum Deduction 
+        {
+            DEDUCTED, INVALID_AMOUNT, NO_MATCH
+        }
+        // deductExpense without the console
+        public Deduction recordDeduction(String category, long amount) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    if (amount <= 0 || amount > totalExpenses.sum()) 
+                    {
+                        return Deduction.INVALID_AMOUNT;
+                    }
+                    if (!applyDeduction(category, amount, true)) 
+                    {
+                        return Deduction.NO_MATCH;
+                    }
+                    version.increment();
+                    if (journal != null) 
+                    {
+                        journal.logDeduct(category, amount);
+                        compactJournalIfNeeded();
+                    }
+                    return Deduction.DEDUCTED;
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                deductExpenseTimer.recordSince(started);
+            }
+        }
+        // Deducts from the first row of the category that can cover the amount; false if none can.
+        // The category's max tree finds that row, and emptied rows become tombstones, so a deduction
+        // costs O(log n) until enough tombstones pile up to pay for one compaction.
+        // Replay passes publish = false and resets the budgets once it is done.
+        private boolean applyDeduction(String category, long amount, boolean publish) 
+        {
+            int categoryId = expenses.categories.idOf(category);
+            int position = categoryIndex.firstCovering(categoryId, amount);
+            if (position < 0) 
+            {
+                return false;
+            }
+            int row = categoryIndex.rowAt(categoryId, position);
+            RateTable.Rate rate = rates.rate(expenses.currency(row), expenses.epochDays[row]);
+            long rowAmount = rate.fromReporting(amount);
+            long before = expenses.reportingAmounts[row];
+            expenses.amounts[row] = Money.subtract(expenses.amounts[row], rowAmount);
+            long after = rate.toReporting(expenses.amounts[row]);
+            expenses.reportingAmounts[row] = after;
+            // Totals follow the row's converted value, which can round differently from the requested amount
+            long delta = Money.subtract(after, before);
+            totalExpenses.add(delta);
+            categoryTotals.get(expenses.categories.valueOf(categoryId)).add(delta);
+            currencyTotals.get(expenses.currency(row)).add(-rowAmount);
+            dateIndex.adjust(expenses.epochDays[row], delta);
+            if (publish) 
+            {
+                budgets.publish(expenses.epochDays[row], categoryId, expenses.categories.valueOf(categoryId), delta);
+            }
+            if (expenses.amounts[row] == 0) 
+            {
+                rollups.remove(expenses.epochDays[row], categoryId, expenses.type(row), before);
+                dateIndex.remove(expenses.epochDays[row], row);
+                categoryIndex.update(categoryId, position, CategoryIndex.EMPTY);
+                amountIndex.remove(before, row);
+                expenses.remove(row);
+                if (expenses.needsCompaction()) 
+                {
+                    expenses.compact();
+                    rebuildIndexes();
+                }
+            }
+            else 
+            {
+                rollups.adjust(expenses.epochDays[row], categoryId, expenses.type(row), before, after);
+                categoryIndex.update(categoryId, position, rate.coverable(expenses.amounts[row]));
+                amountIndex.move(before, after, row);
+            }
+            return true;
+        }
+        public void displayAllExpenses() 
+        {
+            displayAllExpenses(ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        // The writer's format and page decide what is rendered; see ReportWriter
+        public void displayAllExpenses(ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    if (expenses.isEmpty()) 
+                    {
+                        out.message("No expenses recorded yet.");
+                    }
+                     else 
+                     {
+                        out.message("All Expenses:");
+                        for (PrimitiveIterator.OfInt rows = rowCursor(viewOrder); rows.hasNext(); ) 
+                        {
+                            out.row(expenses, rows.nextInt());
+                        }
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error writing report: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                listTimer.recordSince(started);
+            }
+        }
+        // Changes so far; equal versions mean every report would come out the same (for a given day)
+        public long version() 
+        {
+            return version.sum();
+        }
+        // Rows plus every recurring occurrence up to today, in minor units of the tracker currency
+        public long grandTotal() 
+        {
+            long started = metrics.startSampled();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    return Money.add(totalExpenses.sum(), recurring.total(Integer.MIN_VALUE, today(), rates));
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                totalTimer.recordSampledSince(started);
+            }
+        }
+        // Per-category totals including recurring occurrences up to today, in minor units of the tracker currency
+        public Map<String, Long> categoryBreakdown() 
+        {
+            long started = metrics.startSampled();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    Map<String, Long> totals = new LinkedHashMap<>();
+                    for (Map.Entry<String, LongAdder> entry : categoryTotals.entrySet()) 
+                    {
+                        totals.put(entry.getKey(), entry.getValue().sum());
+                    }
+                    addRecurringByCategory(totals, Integer.MIN_VALUE, today());
+                    return totals;
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                categoryTimer.recordSampledSince(started);
+            }
+        }
+        // Rows plus recurring occurrences dated in the month, as generateMonthlyReport totals it
+        public long monthTotal(int year, int month) 
+        {
+            long started = metrics.startSampled();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    return monthSpend(year, month);
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                monthlyTimer.recordSampledSince(started);
+            }
+        }
+        // monthTotal for callers already holding the lock
+        private long monthSpend(int year, int month) 
+        {
+            RollupCube.Period period = rollups.month(year, month);
+            int firstDay = DateCodec.epochDay(year, month, 1);
+            return Money.add(period == null ? 0 : period.total.sum, recurring.total(firstDay, firstDay + DateCodec.lengthOfMonth(year, month) - 1, rates));
+        }
+        public long yearTotal(int year) 
+        {
+            long started = metrics.startSampled();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    RollupCube.Period period = rollups.year(year);
+                    return Money.add(period == null ? 0 : period.total.sum, recurring.total(DateCodec.epochDay(year, 1, 1), DateCodec.epochDay(year, 12, 31), rates));
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                yearlyTimer.recordSampledSince(started);
+            }
+        }
+        public void displayTotalExpenses() 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    // Recurring rules count every occurrence up to today
+                    long total = Money.add(totalExpenses.sum(), recurring.total(Integer.MIN_VALUE, today(), rates));
+                    System.out.println("Total Expenses: " + format(total));
+                    // Native amounts before conversion, only when something was converted
+                    if (currencyTotals.size() > 1 || (currencyTotals.size() == 1 && !currencyTotals.containsKey(currency))) 
+                    {
+                        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(currencyTotals).entrySet()) 
+                        {
+                            System.out.println("  " + entry.getKey() + ": " + Money.format(entry.getValue().sum(), Money.scaleOf(entry.getKey())));
+                        }
+                    }
+                    // The limit is monthly, so it is held against the current month rather than the all-time total
+                    LocalDate today = LocalDate.now();
+                    long monthTotal = monthSpend(today.getYear(), today.getMonthValue());
+                    if (monthTotal > monthlyLimit) 
+                    {
+                        System.out.println("Warning: You have exceeded your monthly expense limit this month by " + format(monthTotal - monthlyLimit) + "!");
+                    }
+                    else 
+                    {
+                        System.out.println("This month's expenses of " + format(monthTotal) + " are within your monthly limit of " + format(monthlyLimit));
+                    }
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                totalTimer.recordSince(started);
+            }
+        }
+        public void displayCategoryReport() 
+        {
+            long started = metrics.start();
+            try 
+            {
+                Map<String, Long> totals = categoryBreakdown();
+                if (totals.isEmpty()) 
+                {
+                    System.out.println("No categories found.");
+                }
+                 else 
+                 {
+                    System.out.println("Expense Breakdown by Category:");
+                    for (Map.Entry<String, Long> entry : totals.entrySet()) 
+                    {
+                        System.out.println("Category: " + entry.getKey() + ", Total: " + format(entry.getValue()));
+                    }
+                }
+            } 
+            finally 
+            {
+                categoryTimer.recordSince(started);
+            }
+        }
+        public void displayMonthlyReport() 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    if (rollups.years().isEmpty()) 
+                    {
+                        System.out.println("No monthly data found.");
+                    }
+                     else 
+                     {
+                        System.out.println("Monthly Expense Breakdown:");
+                        for (Map.Entry<Integer, RollupCube.Period> year : rollups.years().entrySet()) 
+                        {
+                            for (Map.Entry<Integer, RollupCube.Period> month : year.getValue().children.entrySet()) 
+                            {
+                                System.out.println("Month: " + java.time.Month.of(month.getKey()) + " " + year.getKey() + ", Total Expenses: " + format(month.getValue().total.sum));
+                            }
+                        }
+                    }
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                monthlyTimer.recordSince(started);
+            }
+        }
+        public void saveToFile(String fileName) 
+        {
+            try 
+            {
+                writeCsv(fileName);
+                System.out.println("Data saved to file.");
+            } 
+            catch (IOException e) 
+            {
+                System.out.println("Error saving to file: " + e.getMessage());
+            }
+        }
+        // Writes the ledger in the format readCsv reads, without printing
+        public void writeCsv(String fileName) throws IOException 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) 
+                {
+                    writer.write("Monthly Limit: " + Money.format(monthlyLimit, scale) + "\n");
+                    for (int row = 0; row < expenses.size(); row++) 
+                    {
+                        if (expenses.isRemoved(row)) 
+                        {
+                            continue;
+                        }
+                        writer.write(expenses.category(row) + "," + Money.format(expenses.amounts[row], expenses.scale(row)) + "," + expenses.date(row) + "," + expenses.type(row) + "," + expenses.timestamp(row) + "," + expenses.currency(row) + "\n");
+                    }
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                saveTimer.recordSince(started);
+            }
+        }
+        public void loadFromFile(String fileName) 
+        {
+            long start = System.nanoTime();
+            BulkLoader loader;
+            try 
+            {
+                loader = readCsv(fileName);
+            } 
+            catch (IOException e) 
+            {
+                System.out.println("Error loading from file: " + e.getMessage());
+                return;
+            }
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            System.out.println("Data loaded from file: " + loader.rowsLoaded + " rows in " + String.format("%.3f", seconds) + "s ("
+                    + String.format("%.0f", loader.rowsLoaded / seconds) + " rows/sec), " + loader.rejectedLines + " rejected lines.");
+        }
+        // Appends a CSV ledger without printing; the loader carries the loaded and rejected counts.
+        // Rows read before a failure stay loaded, so the aggregates and indexes still cover them
+        public BulkLoader readCsv(String fileName) throws IOException 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    BulkLoader loader = new BulkLoader(expenses, scale);
+                    int firstRow = expenses.size();
+                    try 
+                    {
+                        loader.load(fileName);
+                    } 
+                    finally 
+                    {
+                        if (loader.monthlyLimit != BulkLoader.INVALID) 
+                        {
+                            monthlyLimit = loader.monthlyLimit;
+                        }
+                        convertRows(firstRow);
+                        addToAggregates(firstRow);
+                        rebuildIndexes();
+                        rollups.addRows(expenses, firstRow);
+                        resetBudgets();
+                        version.increment();
+                        persistBulkChange();
+                    }
+                    return loader;
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                loadTimer.recordSince(started);
+            }
+        }
+        // Fills the tracker-currency column for rows [firstRow, size); rows share few (currency, day)
+        // pairs, so nearly every rate comes from the table's cache
+        private void convertRows(int firstRow) 
+        {
+            for (int row = firstRow; row < expenses.size(); row++) 
+            {
+                if (!expenses.isRemoved(row)) 
+                {
+                    expenses.reportingAmounts[row] = rates.rate(expenses.currency(row), expenses.epochDays[row]).toReporting(expenses.amounts[row]);
+                }
+            }
+        }
+        // Folds rows [firstRow, size) into the running totals in one pass
+        private void addToAggregates(int firstRow) 
+        {
+            long[] byCategory = new long[expenses.categories.size()];
+            boolean[] seenCategory = new boolean[byCategory.length];
+            long[] byCurrency = new long[expenses.currencies.size()];
+            boolean[] seenCurrency = new boolean[byCurrency.length];
+            long total = 0;
+            for (int row = firstRow; row < expenses.size(); row++) 
+            {
+                if (expenses.isRemoved(row)) 
+                {
+                    continue;
+                }
+                long amount = expenses.reportingAmounts[row];
+                int categoryId = expenses.categoryIds[row];
+                int currencyId = expenses.currencyIds[row];
+                total = Money.add(total, amount);
+                byCategory[categoryId] = Money.add(byCategory[categoryId], amount);
+                seenCategory[categoryId] = true;
+                byCurrency[currencyId] = Money.add(byCurrency[currencyId], expenses.amounts[row]);
+                seenCurrency[currencyId] = true;
+            }
+            for (int categoryId = 0; categoryId < byCategory.length; categoryId++) 
+            {
+                if (seenCategory[categoryId]) 
+                {
+                    categoryTotals.computeIfAbsent(expenses.categories.valueOf(categoryId), key -> new LongAdder()).add(byCategory[categoryId]);
+                }
+            }
+            for (int currencyId = 0; currencyId < byCurrency.length; currencyId++) 
+            {
+                if (seenCurrency[currencyId]) 
+                {
+                    currencyTotals.computeIfAbsent(expenses.currencies.valueOf(currencyId), key -> new LongAdder()).add(byCurrency[currencyId]);
+                }
+            }
+            totalExpenses.add(total);
+        }
+        // Replaces the exchange rates and re-expresses every row, total, index and rollup with them
+        public void loadExchangeRates(String fileName) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    int loaded;
+                    try 
+                    {
+                        loaded = rates.load(fileName);
+                    } 
+                    catch (IOException e) 
+                    {
+                        System.out.println("Error loading exchange rates: " + e.getMessage());
+                        return;
+                    }
+                    reconvert();
+                    // A rate table can outgrow a journal record, so like a bulk load it is made durable by a compaction
+                    persistBulkChange();
+                    System.out.println("Loaded " + loaded + " exchange rates, " + rates.rejectedLines + " rejected lines.");
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                ratesTimer.recordSince(started);
+            }
+        }
+        private void reconvert() 
+        {
+            convertRows(0);
+            totalExpenses.reset();
+            categoryTotals.clear();
+            currencyTotals.clear();
+            addToAggregates(0);
+            rebuildIndexes();
+            rollups.rebuild(expenses);
+            addArchived(true);
+            resetBudgets();
+            version.increment();
+        }
+        // Hands the monitor fresh per-month and per-category totals from the rollup cube after a bulk change
+        private void resetBudgets() 
+        {
+            HashMap<Integer, BudgetMonitor.MonthBudget> totals = new HashMap<>();
+            for (Map.Entry<Integer, RollupCube.Period> year : rollups.years().entrySet()) 
+            {
+                for (Map.Entry<Integer, RollupCube.Period> month : year.getValue().children.entrySet()) 
+                {
+                    BudgetMonitor.MonthBudget budget = new BudgetMonitor.MonthBudget();
+                    budget.spent = month.getValue().total.sum;
+                    for (Map.Entry<Integer, RollupCube.Aggregate> category : month.getValue().byCategory.entrySet()) 
+                    {
+                        BudgetMonitor.CategoryBudget categoryBudget = new BudgetMonitor.CategoryBudget(expenses.categories.valueOf(category.getKey()));
+                        categoryBudget.spent = category.getValue().sum;
+                        budget.categories.put(category.getKey(), categoryBudget);
+                    }
+                    totals.put(year.getKey() * 12 + month.getKey() - 1, budget);
+                }
+            }
+            budgets.reset(totals, monthlyLimit);
+        }
+        private void printAlert(BudgetMonitor.Alert alert) 
+        {
+            String period = java.time.Month.of(alert.month) + " " + alert.year;
+            String subject = alert.category == null ? "Spending for " + period : alert.category + " spending for " + period;
+            String limit = alert.category == null ? "the monthly limit" : "its budget";
+            System.out.println("Budget alert: " + subject + " reached " + alert.percent + "% of " + limit + " (" + format(alert.spent) + " of " + format(alert.limit) + ")");
+        }
+        // Monthly budget for one category; zero or less removes it
+        public void setCategoryBudget(String category, double limit) 
+        {
+            long minor = Money.toMinor(limit, scale);
+            budgets.setCategoryLimit(category, minor);
+            System.out.println(minor > 0 ? "Monthly budget for " + category + " set to " + format(minor) : "Monthly budget for " + category + " removed");
+        }
+        public void saveSnapshot(String fileName) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    try 
+                    {
+                        SnapshotFile.write(fileName, monthlyLimit, currency, expenses, recurring, rates);
+                        System.out.println("Snapshot saved: " + expenses.liveCount() + " rows.");
+                    } 
+                    catch (IOException e) 
+                    {
+                        System.out.println("Error saving snapshot: " + e.getMessage());
+                    }
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                saveSnapshotTimer.recordSince(started);
+            }
+        }
+        // Replaces the ledger with the snapshot contents
+        public void loadSnapshot(String fileName) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    SnapshotFile.Snapshot snapshot;
+                    try 
+                    {
+                        snapshot = SnapshotFile.read(fileName);
+                    } 
+                    catch (IOException e) 
+                    {
+                        System.out.println("Error loading snapshot: " + e.getMessage());
+                        return;
+                    }
+                    applySnapshot(snapshot);
+                    persistBulkChange();
+                    System.out.println("Snapshot loaded: " + expenses.liveCount() + " rows.");
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                loadSnapshotTimer.recordSince(started);
+            }
+        }
+        private void applySnapshot(SnapshotFile.Snapshot snapshot) 
+        {
+            monthlyLimit = snapshot.monthlyLimit;
+            currency = snapshot.currency;
+            scale = Money.scaleOf(currency);
+            expenses = snapshot.store;
+            recurring = snapshot.recurring;
+            // Snapshots before version 5 carry no rates, so the loaded table stays in force
+            if (snapshot.rates != null) 
+            {
+                rates.copyFrom(snapshot.rates);
+            }
+            rates.setReportingCurrency(currency);
+            reconvert();
+        }
+        // Recovers state from the directory's latest snapshot plus journal tail, then journals
+        // every further mutation there. Files: snapshot.<generation>.bin and journal.<generation>.log.
+        public void openJournal(String directory) 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                if (journal != null) 
+                {
+                    System.out.println("Journal already open in " + journalDirectory);
+                    return;
+                }
+                Path dir = Paths.get(directory).toAbsolutePath();
+                int replayed = 0;
+                try 
+                {
+                    Files.createDirectories(dir);
+                    long snapshotGeneration = latestGeneration(dir, "snapshot.", ".bin");
+                    if (snapshotGeneration >= 0) 
+                    {
+                        applySnapshot(SnapshotFile.read(dir.resolve("snapshot." + snapshotGeneration + ".bin").toString()));
+                    }
+                    long generation = Math.max(snapshotGeneration, 0);
+                    // A crash mid-compaction can leave older journals that are not yet covered by the snapshot
+                    for (long g = generation; ; g++) 
+                    {
+                        Path file = dir.resolve("journal." + g + ".log");
+                        if (!Files.exists(file)) 
+                        {
+                            break;
+                        }
+                        int[] count = new int[1];
+                        Journal.replay(file, (op, in) -> 
+                        {
+                            replayRecord(op, in);
+                            count[0]++;
+                        });
+                        replayed += count[0];
+                        generation = g;
+                    }
+                    // Replayed adds and deductions are not published one by one
+                    resetBudgets();
+                    version.increment();
+                    journalDirectory = dir;
+                    journalGeneration = generation;
+                    journal = new Journal(dir.resolve("journal." + generation + ".log"), JOURNAL_COMMIT_INTERVAL_MILLIS);
+                } 
+                catch (IOException | UncheckedIOException e) 
+                {
+                    System.out.println("Error opening journal: " + e.getMessage());
+                    return;
+                }
+                System.out.println("Journal opened in " + dir + ": " + expenses.liveCount() + " rows recovered, " + replayed + " journal records replayed.");
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        private void replayRecord(byte op, DataInputStream in) throws IOException 
+        {
+            switch (op) 
+            {
+                case Journal.ADD:
+                case Journal.LEGACY_ADD:
+                    String category = in.readUTF();
+                    long rawAmount = in.readLong();
+                    int epochDay = in.readInt();
+                    ExpenseType type = ExpenseType.values()[in.readByte()];
+                    String rowCurrency = in.readUTF();
+                    long amount = op == Journal.ADD ? rawAmount : Money.toMinor(Double.longBitsToDouble(rawAmount), Money.scaleOf(rowCurrency));
+                    insertExpense(category, amount, epochDay, type, rowCurrency, in.readLong());
+                    break;
+                case Journal.DEDUCT:
+                    applyDeduction(in.readUTF(), in.readLong(), false);
+                    break;
+                case Journal.LEGACY_DEDUCT:
+                    applyDeduction(in.readUTF(), Money.toMinor(in.readDouble(), scale), false);
+                    break;
+                case Journal.LIMIT:
+                    monthlyLimit = in.readLong();
+                    break;
+                case Journal.LEGACY_LIMIT:
+                    monthlyLimit = Money.toMinor(in.readDouble(), scale);
+                    break;
+                case Journal.RECURRING:
+                case Journal.LEGACY_RECURRING:
+                    String recurringCategory = in.readUTF();
+                    long recurringAmount = op == Journal.RECURRING ? in.readLong() : Money.toMinor(in.readDouble(), scale);
+                    String startDate = in.readUTF();
+                    int intervalDays = in.readInt();
+                    // Older trackers journaled rules unvalidated: a bad start date cannot be scheduled,
+                    // and a non-positive interval is kept as a one-off
+                    int recurringStart = DateCodec.parse(startDate);
+                    if (recurringStart != DateCodec.INVALID) 
+                    {
+                        insertRecurringExpense(recurringCategory, recurringAmount, recurringStart, Math.max(intervalDays, 0));
+                    }
+                    break;
+                case Journal.RESET:
+                    clearAll();
+                    break;
+                // Older trackers reordered the store itself, which decides later deductions, so replay keeps doing so
+                case Journal.SORT_BY_AMOUNT:
+                    reorderByAmount();
+                    break;
+                case Journal.SORT_BY_DATE:
+                    reorderByDate();
+                    break;
+                default:
+                    throw new IOException("Unknown journal op " + op);
+            }
+        }
+        // Writes a snapshot of the current state and starts a fresh journal generation
+        public void compactJournal() 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                if (journal == null) 
+                {
+                    System.out.println("No journal is open.");
+                    return;
+                }
+                try 
+                {
+                    compact();
+                    System.out.println("Journal compacted into snapshot generation " + journalGeneration + ".");
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error compacting journal: " + e.getMessage());
+                }
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        private void compact() throws IOException 
+        {
+            long next = journalGeneration + 1;
+            // Switch to the new journal first: until the snapshot lands, recovery replays both
+            Journal previous = journal;
+            journal = new Journal(journalDirectory.resolve("journal." + next + ".log"), JOURNAL_COMMIT_INTERVAL_MILLIS);
+            journalGeneration = next;
+            previous.close();
+            SnapshotFile.write(journalDirectory.resolve("snapshot." + next + ".bin").toString(), monthlyLimit, currency, expenses, recurring, rates);
+            for (long g = next - 1; g >= 0; g--) 
+            {
+                boolean deleted = Files.deleteIfExists(journalDirectory.resolve("journal." + g + ".log"));
+                deleted |= Files.deleteIfExists(journalDirectory.resolve("snapshot." + g + ".bin"));
+                if (!deleted && g < next - 1) 
+                {
+                    break;
+                }
+            }
+        }
+        private void compactJournalIfNeeded() 
+        {
+            try 
+            {
+                if (journal.size() >= JOURNAL_COMPACTION_BYTES) 
+                {
+                    compact();
+                }
+            } 
+            catch (IOException e) 
+            {
+                System.out.println("Error compacting journal: " + e.getMessage());
+            }
+        }
+        // Bulk loads are not journaled row by row, so they are made durable with a compaction
+        private void persistBulkChange() 
+        {
+            if (journal != null) 
+            {
+                compactJournal();
+            }
+        }
+        public void closeJournal() 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                if (journal == null) 
+                {
+                    return;
+                }
+                try 
+                {
+                    journal.close();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error closing journal: " + e.getMessage());
+                }
+                journal = null;
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        private static long latestGeneration(Path dir, String prefix, String suffix) throws IOException 
+        {
+            long latest = -1;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) 
+            {
+                for (Path file : files) 
+                {
+                    String name = file.getFileName().toString();
+                    try 
+                    {
+                        latest = Math.max(latest, Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                    } 
+                    catch (NumberFormatException e) 
+                    {
+                        // Not one of ours
+                    }
+                }
+            }
+            return latest;
+        }
+        public void updateMonthlyLimit(double newLimit) 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                this.monthlyLimit = Money.toMinor(newLimit, scale);
+                budgets.setMonthlyLimit(monthlyLimit);
+                version.increment();
+                if (journal != null) 
+                {
+                    journal.logLimit(monthlyLimit);
+                    compactJournalIfNeeded();
+                }
+                System.out.println("Monthly expense limit updated to " + format(monthlyLimit));
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        // Lists expenses by amount from now on; the view is kept sorted as rows change
+        public void sortExpensesByAmount() 
+        {
+            viewOrder = RowOrder.AMOUNT;
+            System.out.println("Expenses sorted by amount.");
+        }
+        public void sortExpensesByDate() 
+        {
+            viewOrder = RowOrder.DATE;
+            System.out.println("Expenses sorted by date.");
+        }
+        private void reorderByAmount() 
+        {
+            long[] amounts = expenses.reportingAmounts;
+            expenses.sort((a, b) -> Long.compare(amounts[a], amounts[b]));
+            rebuildIndexes();
+        }
+        private void reorderByDate() 
+        {
+            int[] epochDays = expenses.epochDays;
+            expenses.sort((a, b) -> Integer.compare(epochDays[a], epochDays[b]));
+            rebuildIndexes();
+        }
+        // Row ids changed (compaction, bulk load, snapshot, reorder), so every row-keyed index starts over
+        private void rebuildIndexes() 
+        {
+            dateIndex.rebuild(expenses);
+            categoryIndex.rebuild(expenses, rates);
+            amountIndex.rebuild(expenses);
+        }
+        // Live row ids in the given order; callers hold the lock
+        PrimitiveIterator.OfInt rowCursor(RowOrder order) 
+        {
+            switch (order) 
+            {
+                case AMOUNT:
+                    return amountIndex.rows(false);
+                case DATE:
+                    return dateIndex.rows(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                default:
+                    return java.util.stream.IntStream.range(0, expenses.size()).filter(row -> !expenses.isRemoved(row)).iterator();
+            }
+        }
+        // Reports on the current calendar month
+        public void generateMonthlyReport() 
+        {
+            LocalDate today = LocalDate.now();
+            generateMonthlyReport(today.getYear(), today.getMonthValue());
+        }
+        public void generateMonthlyReport(int year, int month) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    RollupCube.Period period = rollups.month(year, month);
+                    int firstDay = DateCodec.epochDay(year, month, 1);
+                    int lastDay = firstDay + DateCodec.lengthOfMonth(year, month) - 1;
+                    long monthTotal = Money.add(period == null ? 0 : period.total.sum, recurring.total(firstDay, lastDay, rates));
+                    System.out.println("Monthly Report: Total expenses for " + java.time.Month.of(month) + " " + year + ": " + format(monthTotal));
+                    if (monthTotal > monthlyLimit) 
+                    {
+                        System.out.println("Warning: You've exceeded your monthly limit by " + format(monthTotal - monthlyLimit));
+                    } else 
+                    {
+                        System.out.println("You're within the monthly limit by " + format(monthlyLimit - monthTotal));
+                    }
+                    if (period != null) 
+                    {
+                        printBreakdown(period);
+                    }
+                    printRecurring(firstDay, lastDay);
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                monthlyTimer.recordSince(started);
+            }
+        }
+        // Reports on the current calendar year
+        public void generateYearlyReport() 
+        {
+            generateYearlyReport(LocalDate.now().getYear());
+        }
+        public void generateYearlyReport(int year) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    RollupCube.Period period = rollups.year(year);
+                    int firstDay = DateCodec.epochDay(year, 1, 1);
+                    int lastDay = DateCodec.epochDay(year, 12, 31);
+                    long yearTotal = Money.add(period == null ? 0 : period.total.sum, recurring.total(firstDay, lastDay, rates));
+                    System.out.println("Yearly Report: Total expenses for " + year + ": " + format(yearTotal));
+                    for (int month = 1; month <= 12; month++) 
+                    {
+                        RollupCube.Period monthPeriod = period == null ? null : period.children.get(month);
+                        int monthStart = DateCodec.epochDay(year, month, 1);
+                        long monthTotal = Money.add(monthPeriod == null ? 0 : monthPeriod.total.sum, 
+                                recurring.total(monthStart, monthStart + DateCodec.lengthOfMonth(year, month) - 1, rates));
+                        if (monthTotal != 0) 
+                        {
+                            System.out.println("Month: " + java.time.Month.of(month) + ", Total: " + format(monthTotal));
+                        }
+                    }
+                    if (period != null) 
+                    {
+                        printBreakdown(period);
+                    }
+                    printRecurring(firstDay, lastDay);
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                yearlyTimer.recordSince(started);
+            }
+        }
+        // Count, extremes and per-category / per-type totals of one period of the rollup cube
+        private void printBreakdown(RollupCube.Period period) 
+        {
+            System.out.println(period.total.count + " expenses, smallest " + format(period.total.min) + ", largest " + format(period.total.max));
+            for (Map.Entry<Integer, RollupCube.Aggregate> entry : period.byCategory.entrySet()) 
+            {
+                RollupCube.Aggregate aggregate = entry.getValue();
+                System.out.println("Category: " + expenses.categories.valueOf(entry.getKey()) + ", Total: " + format(aggregate.sum) + ", Count: " + aggregate.count);
+            }
+            for (ExpenseType type : ExpenseType.values()) 
+            {
+                RollupCube.Aggregate aggregate = period.byType[type.ordinal()];
+                if (aggregate != null) 
+                {
+                    System.out.println("Type: " + type + ", Total: " + format(aggregate.sum) + ", Count: " + aggregate.count);
+                }
+            }
+        }
+        // Recurring spend within [startDay, endDay], per category
+        private void printRecurring(int startDay, int endDay) 
+        {
+            Map<String, Long> totals = new LinkedHashMap<>();
+            addRecurringByCategory(totals, startDay, endDay);
+            for (Map.Entry<String, Long> entry : totals.entrySet()) 
+            {
+                System.out.println("Recurring: " + entry.getKey() + ", Total: " + format(entry.getValue()));
+            }
+        }
+        // Merges recurring spend within [startDay, endDay] into totals keyed by the store's category spelling
+        private void addRecurringByCategory(Map<String, Long> totals, int startDay, int endDay) 
+        {
+            long[] byCategory = recurring.totalsByCategory(startDay, endDay, rates);
+            for (int categoryId = 0; categoryId < byCategory.length; categoryId++) 
+            {
+                if (byCategory[categoryId] != 0) 
+                {
+                    String name = recurring.categories.valueOf(categoryId);
+                    int storeId = expenses.categories.idOf(name);
+                    totals.merge(storeId >= 0 ? expenses.categories.valueOf(storeId) : name, byCategory[categoryId], Money::add);
+                }
+            }
+        }
+        public void filterExpensesByCategory(String category) 
+        {
+            filterExpensesByCategory(category, ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        public void filterExpensesByCategory(String category, ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    IntList rows = categoryIndex.rows(expenses.categories.idOf(category));
+                    for (int i = 0; i < rows.size(); i++) 
+                    {
+                        if (!expenses.isRemoved(rows.get(i))) 
+                        {
+                            out.row(expenses, rows.get(i));
+                        }
+                    }
+                    if (out.rows() == 0) 
+                    {
+                        out.message("No expenses found in the category: " + category);
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error writing report: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                filterCategoryTimer.recordSince(started);
+            }
+        }
+        public void filterExpensesByDate(String date) 
+        {
+            filterExpensesByDate(date, ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        public void filterExpensesByDate(String date, ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    int day = DateCodec.parse(date);
+                    if (day != DateCodec.INVALID) 
+                    {
+                        if (archiveCovers(day, day)) 
+                        {
+                            listArchived(day, day, out);
+                        }
+                        IntList rows = dateIndex.rowsOn(day);
+                        for (int i = 0; i < rows.size(); i++) 
+                        {
+                            out.row(expenses, rows.get(i));
+                        }
+                        for (int rule = 0; rule < recurring.size(); rule++) 
+                        {
+                            if (recurring.count(rule, day, day) > 0) 
+                            {
+                                out.row(recurring, rule, day, null);
+                            }
+                        }
+                    }
+                    if (out.rows() == 0) 
+                    {
+                        out.message("No expenses found on the date: " + date);
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error writing report: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                filterDateTimer.recordSince(started);
+            }
+        }
+        // The k largest expenses dated in [startDate, endDate], largest first and ties in row order
+        public List<Expense> largestExpenses(int k, String startDate, String endDate) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    int startDay = toEpochDay(startDate);
+                    int endDay = toEpochDay(endDate);
+                    List<Expense> largest = new ArrayList<>();
+                    if (archiveCovers(startDay, endDay)) 
+                    {
+                        ExpenseStore rows = largestAcrossTiers(k, startDay, endDay);
+                        for (int row = 0; row < rows.size(); row++) 
+                        {
+                            largest.add(rows.get(row));
+                        }
+                        return largest;
+                    }
+                    IntList rows = largestRows(k, startDay, endDay);
+                    for (int i = 0; i < rows.size(); i++) 
+                    {
+                        largest.add(expenses.get(rows.get(i)));
+                    }
+                    return largest;
+                } 
+                catch (IOException e) 
+                {
+                    throw new UncheckedIOException(e);
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                largestTimer.recordSince(started);
+            }
+        }
+        public void displayLargestExpenses(int k, String startDate, String endDate) 
+        {
+            displayLargestExpenses(k, startDate, endDate, ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        public void displayLargestExpenses(int k, String startDate, String endDate, ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    int startDay = toEpochDay(startDate);
+                    int endDay = toEpochDay(endDate);
+                    ExpenseStore store = expenses;
+                    IntList rows;
+                    if (archiveCovers(startDay, endDay)) 
+                    {
+                        store = largestAcrossTiers(k, startDay, endDay);
+                        rows = new IntList(Math.max(store.size(), 1));
+                        for (int row = 0; row < store.size(); row++) 
+                        {
+                            rows.add(row);
+                        }
+                    }
+                    else 
+                    {
+                        rows = largestRows(k, startDay, endDay);
+                    }
+                    if (rows.isEmpty()) 
+                    {
+                        out.message("No expenses found from " + startDate + " to " + endDate);
+                    }
+                    else 
+                    {
+                        out.message("Largest " + rows.size() + " expenses from " + startDate + " to " + endDate + ":");
+                        for (int i = 0; i < rows.size(); i++) 
+                        {
+                            out.row(store, rows.get(i));
+                        }
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error writing report: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                largestTimer.recordSince(started);
+            }
+        }
+        // Walks the amount order from the top, which meets k rows of the period quickly unless the period's
+        // rows are the ledger's smallest. The walk is capped at a few visits per row in the period, after
+        // which a k-sized heap over just the period's rows finishes the job, so neither path goes O(n).
+        private IntList largestRows(int k, int startDay, int endDay) 
+        {
+            IntList largest = new IntList(Math.max(Math.min(k, 1024), 0));
+            int inRange = dateIndex.count(startDay, endDay);
+            if (k <= 0 || inRange == 0) 
+            {
+                return largest;
+            }
+            long budget = 4L * inRange;
+            for (PrimitiveIterator.OfInt rows = amountIndex.rows(true); rows.hasNext() && largest.size() < k && budget-- > 0; ) 
+            {
+                int row = rows.nextInt();
+                if (expenses.epochDays[row] >= startDay && expenses.epochDays[row] <= endDay) 
+                {
+                    largest.add(row);
+                }
+            }
+            if (largest.size() == Math.min(k, inRange)) 
+            {
+                return largest;
+            }
+            largest.clear();
+            long[] amounts = expenses.reportingAmounts;
+            Comparator<Integer> order = Comparator.<Integer>comparingLong(row -> amounts[row])
+                    .reversed().thenComparingInt(row -> row);
+            // Head is the weakest of the k rows kept so far
+            PriorityQueue<Integer> heap = new PriorityQueue<>(Math.min(k, inRange) + 1, order.reversed());
+            for (PrimitiveIterator.OfInt rows = dateIndex.rows(startDay, endDay); rows.hasNext(); ) 
+            {
+                heap.add(rows.nextInt());
+                if (heap.size() > k) 
+                {
+                    heap.poll();
+                }
+            }
+            Integer[] rows = heap.toArray(new Integer[0]);
+            Arrays.sort(rows, order);
+            for (int row : rows) 
+            {
+                largest.add(row);
+            }
+            return largest;
+        }
+        // Writes every expense to a file in the given format; a limit of 0 or less exports all rows
+        public void exportExpenses(String fileName, ReportWriter.Format format, long offset, long limit) 
+        {
+            try (ReportWriter out = ReportWriter.file(fileName, format)) 
+            {
+                displayAllExpenses(out.page(offset, limit));
+                System.out.println("Exported " + out.rendered() + " of " + out.rows() + " rows to " + fileName);
+            } 
+            catch (IOException e) 
+            {
+                System.out.println("Error exporting to file: " + e.getMessage());
+            }
+        }
+        public void generateCustomReport(String startDate, String endDate) 
+        {
+            ReportEngine.Summary summary = customReport(startDate, endDate);
+            System.out.println("Custom Report: Total expenses from " + startDate + " to " + endDate + ": " + format(summary.grandTotal()));
+            if (summary.total.count > 0) 
+            {
+                System.out.println(summary.total.count + " expenses, smallest " + format(summary.total.min) + ", largest " + format(summary.total.max));
+                for (Map.Entry<String, RollupCube.Aggregate> entry : summary.byCategory.entrySet()) 
+                {
+                    System.out.println("Category: " + entry.getKey() + ", Total: " + format(entry.getValue().sum) + ", Count: " + entry.getValue().count);
+                }
+                for (Map.Entry<ExpenseType, RollupCube.Aggregate> entry : summary.byType.entrySet()) 
+                {
+                    System.out.println("Type: " + entry.getKey() + ", Total: " + format(entry.getValue().sum) + ", Count: " + entry.getValue().count);
+                }
+            }
+            for (Map.Entry<String, Long> entry : summary.recurringByCategory.entrySet()) 
+            {
+                System.out.println("Recurring: " + entry.getKey() + ", Total: " + format(entry.getValue()));
+            }
+        }
+        // The custom report's figures from the rollup cube instead of the rows, so its cost follows the number
+        // of years, months and edge days in the range rather than the number of rows in it
+        private ReportEngine.Summary customReport(String startDate, String endDate) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                int startDay = toEpochDay(startDate);
+                int endDay = toEpochDay(endDate);
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    ReportEngine.Summary summary = new ReportEngine.Summary();
+                    summary.startDay = startDay;
+                    summary.endDay = endDay;
+                    rollups.fold(summary, startDay, endDay, expenses.categories);
+                    addRecurringByCategory(summary.recurringByCategory, startDay, endDay);
+                    for (long amount : summary.recurringByCategory.values()) 
+                    {
+                        summary.recurringTotal = Money.add(summary.recurringTotal, amount);
+                    }
+                    return summary;
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                summarizeTimer.recordSince(started);
+            }
+        }
+        // Totals, extremes and per-category / type / currency breakdowns of [startDate, endDate]
+        public ReportEngine.Summary summarize(String startDate, String endDate) 
+        {
+            return summarize(startDate, endDate, null);
+        }
+        // As above, restricted to one category when category is not null
+        public ReportEngine.Summary summarize(String startDate, String endDate, String category) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                int startDay = toEpochDay(startDate);
+                int endDay = toEpochDay(endDate);
+                drain();
+                lock.readLock().lock();
+                try 
+                {
+                    int categoryId = RollupCube.ANY;
+                    if (category != null) 
+                    {
+                        categoryId = expenses.categories.idOf(category);
+                        if (categoryId < 0) 
+                        {
+                            // No rows, though recurring rules may still use the name
+                            categoryId = Integer.MAX_VALUE;
+                        }
+                    }
+                    ReportEngine.Summary summary = reports.summarize(expenses, dateIndex, startDay, endDay, categoryId);
+                    // Archived days contribute their aggregates; byCurrency stays a breakdown of the hot rows
+                    rollups.foldSealed(summary, startDay, endDay, categoryId, expenses.categories);
+                    addRecurringByCategory(summary.recurringByCategory, startDay, endDay);
+                    if (category != null) 
+                    {
+                        summary.recurringByCategory.keySet().removeIf(name -> !name.equalsIgnoreCase(category));
+                    }
+                    for (long amount : summary.recurringByCategory.values()) 
+                    {
+                        summary.recurringTotal = Money.add(summary.recurringTotal, amount);
+                    }
+                    return summary;
+                } 
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                summarizeTimer.recordSince(started);
+            }
+        }
+        // Rows to visit before a report is split across the fork-join pool
+        public void setParallelThreshold(int parallelThreshold) 
+        {
+            reports.setParallelThreshold(parallelThreshold);
+        }
+        static int today() 
+        {
+            return (int) LocalDate.now().toEpochDay();
+        }
+        // Callers that have not validated the date get the same exception LocalDate.parse would throw
+        private static int toEpochDay(String date) 
+        {
+            int epochDay = DateCodec.parse(date);
+            if (epochDay == DateCodec.INVALID) 
+            {
+                throw new java.time.format.DateTimeParseException("Text '" + date + "' could not be parsed as yyyy-MM-dd", String.valueOf(date), 0);
+            }
+            return epochDay;
+        }
+        // Added Method to Track Savings Progress
+        public void trackSavings(double savingsGoal) 
+        {
+            drain();
+            lock.readLock().lock();
+            try 
+            {
+                long goal = Money.toMinor(savingsGoal, scale);
+                long savingsProgress = goal - totalExpenses.sum();
+                System.out.println("Savings Goal: " + format(goal));
+                if (savingsProgress > 0) 
+                {
+                    System.out.println("You're on track! You have " + format(savingsProgress) + " left to reach your goal.");
+                } else 
+                {
+                    System.out.println("Great job! You've exceeded your savings goal by " + format(-savingsProgress));
+                }
+            } 
+            finally 
+            {
+                lock.readLock().unlock();
+            }
+        }
+        // Attaches an archive directory. Its segments' aggregates join the totals and rollups; their rows stay on disk
+        public void openArchive(String directory) 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                if (archive != null) 
+                {
+                    System.out.println("Archive already open in " + archive.directory);
+                    return;
+                }
+                try 
+                {
+                    archive = Archive.open(directory);
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error opening archive: " + e.getMessage());
+                    return;
+                }
+                addArchived(true);
+                resetBudgets();
+                version.increment();
+                System.out.println("Archive opened in " + archive.directory + ": " + archive.segments().size() + " segments, " + archive.rows() + " sealed rows.");
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        public void archiveExpensesBefore(String date) 
+        {
+            try 
+            {
+                int sealed = archiveBefore(date);
+                System.out.println(sealed == 0 ? "No expenses dated before " + date + " to archive." : "Archived " + sealed + " expenses dated before " + date + ".");
+            } 
+            catch (IllegalStateException e) 
+            {
+                System.out.println("Open an archive first.");
+            }
+            catch (java.time.DateTimeException e) 
+            {
+                System.out.println("Invalid date: " + date);
+            }
+            catch (IOException e) 
+            {
+                System.out.println("Error archiving expenses: " + e.getMessage());
+            }
+        }
+        // Seals every row dated before date into a new archive segment and drops it from the hot store;
+        // returns the number of rows sealed. Totals and period reports are unchanged by it.
+        // Throws IllegalStateException when no archive is open
+        public int archiveBefore(String date) throws IOException 
+        {
+            int cutoffDay = toEpochDay(date);
+            long started = metrics.start();
+            try 
+            {
+                drain();
+                lock.writeLock().lock();
+                try 
+                {
+                    if (archive == null) 
+                    {
+                        throw new IllegalStateException("no archive is open");
+                    }
+                    return seal(cutoffDay);
+                } 
+                finally 
+                {
+                    lock.writeLock().unlock();
+                }
+            } 
+            finally 
+            {
+                archiveTimer.recordSince(started);
+            }
+        }
+        // Callers hold the write lock. The segment is durable before any row leaves the store, and an open
+        // journal is compacted straight after, so recovery never replays a sealed row into the hot store
+        private int seal(int cutoffDay) throws IOException 
+        {
+            IntList rows = new IntList();
+            for (int row = 0; row < expenses.size(); row++) 
+            {
+                if (!expenses.isRemoved(row) && expenses.epochDays[row] < cutoffDay) 
+                {
+                    rows.add(row);
+                }
+            }
+            if (rows.isEmpty()) 
+            {
+                return 0;
+            }
+            archive.seal(expenses, rows, currency);
+            for (int i = 0; i < rows.size(); i++) 
+            {
+                expenses.remove(rows.get(i));
+            }
+            expenses.compact();
+            expenses.trimToSize();
+            rebuildIndexes();
+            rollups.rebuild(expenses);
+            addArchived(false);
+            resetBudgets();
+            version.increment();
+            if (journal != null) 
+            {
+                compact();
+            }
+            return rows.size();
+        }
+        // Folds every segment's aggregates into the rollups and, with totals, into the running totals.
+        // Segments sealed under another tracker currency are converted at the rate of each cell's day
+        private void addArchived(boolean totals) 
+        {
+            if (archive == null) 
+            {
+                return;
+            }
+            for (Archive.Segment segment : archive.segments()) 
+            {
+                boolean convert = !segment.currency.equalsIgnoreCase(currency);
+                for (int i = 0; i < segment.cells.length; i++) 
+                {
+                    RollupCube.Aggregate cell = segment.cells[i];
+                    if (convert) 
+                    {
+                        RateTable.Rate rate = rates.rate(segment.currency, segment.cellDays[i]);
+                        RollupCube.Aggregate converted = new RollupCube.Aggregate();
+                        converted.count = cell.count;
+                        converted.sum = rate.toReporting(cell.sum);
+                        converted.min = rate.toReporting(cell.min);
+                        converted.max = rate.toReporting(cell.max);
+                        cell = converted;
+                    }
+                    int categoryId = expenses.categories.intern(segment.categories[segment.cellCategories[i]]);
+                    rollups.addSealed(segment.cellDays[i], categoryId, segment.cellTypes[i], cell);
+                    if (totals) 
+                    {
+                        totalExpenses.add(cell.sum);
+                        categoryTotals.computeIfAbsent(expenses.categories.valueOf(categoryId), key -> new LongAdder()).add(cell.sum);
+                    }
+                }
+                for (int i = 0; totals && i < segment.currencies.length; i++) 
+                {
+                    currencyTotals.computeIfAbsent(segment.currencies[i], key -> new LongAdder()).add(segment.currencyTotals[i]);
+                }
+            }
+        }
+        public void displayArchivedExpenses(String startDate, String endDate) 
+        {
+            displayArchivedExpenses(startDate, endDate, ReportWriter.console(ReportWriter.Format.TEXT));
+        }
+        // Detail listing of sealed rows dated in [startDate, endDate]; only the segments overlapping the range are read
+        public void displayArchivedExpenses(String startDate, String endDate, ReportWriter out) 
+        {
+            long started = metrics.start();
+            try 
+            {
+                int startDay = toEpochDay(startDate);
+                int endDay = toEpochDay(endDate);
+                lock.readLock().lock();
+                try 
+                {
+                    if (archive != null) 
+                    {
+                        listArchived(startDay, endDay, out);
+                    }
+                    if (out.rows() == 0) 
+                    {
+                        out.message("No archived expenses found from " + startDate + " to " + endDate);
+                    }
+                    out.finish();
+                } 
+                catch (IOException e) 
+                {
+                    System.out.println("Error reading archive: " + e.getMessage());
+                }
+                finally 
+                {
+                    lock.readLock().unlock();
+                }
+            } 
+            finally 
+            {
+                archivedListTimer.recordSince(started);
+            }
+        }
+        // Sealed rows dated in [startDay, endDay], in segment and then row order; callers hold the lock
+        private void listArchived(int startDay, int endDay, ReportWriter out) throws IOException 
+        {
+            for (Archive.Segment segment : archive.segments()) 
+            {
+                if (!segment.overlaps(startDay, endDay)) 
+                {
+                    continue;
+                }
+                ExpenseStore sealed = segment.rows();
+                for (int row = 0; row < sealed.size(); row++) 
+                {
+                    if (sealed.epochDays[row] >= startDay && sealed.epochDays[row] <= endDay) 
+                    {
+                        out.row(sealed, row);
+                    }
+                }
+            }
+        }
+        private boolean archiveCovers(int startDay, int endDay) 
+        {
+            return archive != null && archive.lastDay() >= startDay && endDay >= startDay;
+        }
+        // Copies of the k largest rows dated in [startDay, endDay] across the sealed segments and the hot
+        // store, largest first; on ties sealed rows, the older ones, come first. Callers hold the lock
+        private ExpenseStore largestAcrossTiers(int k, int startDay, int endDay) throws IOException 
+        {
+            ExpenseStore candidates = new ExpenseStore();
+            for (Archive.Segment segment : archive.segments()) 
+            {
+                if (!segment.overlaps(startDay, endDay)) 
+                {
+                    continue;
+                }
+                ExpenseStore sealed = segment.rows();
+                IntList inRange = new IntList();
+                for (int row = 0; row < sealed.size(); row++) 
+                {
+                    if (sealed.epochDays[row] >= startDay && sealed.epochDays[row] <= endDay) 
+                    {
+                        inRange.add(row);
+                    }
+                }
+                // Only a segment's own top k can make the final cut
+                IntList top = top(sealed, inRange, k);
+                for (int i = 0; i < top.size(); i++) 
+                {
+                    candidates.addFrom(sealed, top.get(i));
+                }
+            }
+            IntList hot = largestRows(k, startDay, endDay);
+            for (int i = 0; i < hot.size(); i++) 
+            {
+                candidates.addFrom(expenses, hot.get(i));
+            }
+            IntList all = new IntList(Math.max(candidates.size(), 1));
+            for (int row = 0; row < candidates.size(); row++) 
+            {
+                all.add(row);
+            }
+            IntList top = top(candidates, all, k);
+            ExpenseStore largest = new ExpenseStore(Math.max(top.size(), 1));
+            for (int i = 0; i < top.size(); i++) 
+            {
+                largest.addFrom(candidates, top.get(i));
+            }
+            return largest;
+        }
+        // The k rows with the largest tracker-currency amounts, largest first and ties in row order
+        private static IntList top(ExpenseStore store, IntList rows, int k) 
+        {
+            long[] amounts = store.reportingAmounts;
+            Comparator<Integer> order = Comparator.<Integer>comparingLong(row -> amounts[row]).reversed().thenComparingInt(row -> row);
+            // Head is the weakest of the k rows kept so far
+            PriorityQueue<Integer> heap = new PriorityQueue<>(Math.max(Math.min(k, rows.size()), 0) + 1, order.reversed());
+            for (int i = 0; i < rows.size() && k > 0; i++) 
+            {
+                heap.add(rows.get(i));
+                if (heap.size() > k) 
+                {
+                    heap.poll();
+                }
+            }
+            Integer[] kept = heap.toArray(new Integer[0]);
+            Arrays.sort(kept, order);
+            IntList top = new IntList(Math.max(kept.length, 1));
+            for (int row : kept) 
+            {
+                top.add(row);
+            }
+            return top;
+        }
+        // Method to Reset Expenses at the Beginning of New Year
+        // With an archive open, earlier years are sealed into it instead of being thrown away
+        public void resetExpensesForNewYear() 
+        {
+            drain();
+            lock.writeLock().lock();
+            try 
+            {
+                if (archive != null) 
+                {
+                    int year = LocalDate.now().getYear();
+                    try 
+                    {
+                        int sealed = seal(DateCodec.epochDay(year, 1, 1));
+                        System.out.println("Archived " + sealed + " expenses dated before " + year + " to " + archive.directory + ".");
+                    } 
+                    catch (IOException e) 
+                    {
+                        System.out.println("Error archiving expenses: " + e.getMessage());
+                    }
+                    return;
+                }
+                clearAll();
+                if (journal != null) 
+                {
+                    journal.log(Journal.RESET);
+                    compactJournalIfNeeded();
+                }
+                System.out.println("Expenses have been reset for the new year.");
+            } 
+            finally 
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        private void clearAll() 
+        {
+            pending.clear();
+            expenses.clear();
+            totalExpenses.reset();
+            categoryTotals.clear();
+            currencyTotals.clear();
+            recurring.clear();
+            dateIndex.clear();
+            categoryIndex.clear();
+            amountIndex.clear();
+            rollups.clear();
+            addArchived(true);
+            resetBudgets();
+            version.increment();
+        }
+    }
+    // Headless mode: runs a script of commands against one tracker without the menu, e.g.
+    //   java -jar expense-tracker.jar --batch commands.txt --limit 2000 --currency EUR
+    // reading stdin when the file is "-" or missing. One command per line, tokens separated by
+    // whitespace, double quotes around tokens that contain spaces, # starting a comment:
+    //   add <category> <amount> <yyyy-MM-dd> [FIXED|VARIABLE]    deduct <category> <amount>
+    //   recurring <category> <amount> <start> <intervalDays>     limit <amount>
+    //   budget <category> <amount>                               rates <file>
+    //   load <file>    save <file>    snapshot save|load <file>  journal <dir>    reset
+    //   export <file> [text|table|csv|jsonl]    metrics    archive <dir>    seal <yyyy-MM-dd>
+    //   report total|categories|months|all|recurring|monthly <yyyy-MM>|yearly <yyyy>
+    //          |custom <start> <end>|largest <k> <start> <end>|category <name>|date <yyyy-MM-dd>
+    //          |archived <start> <end>
+    // Adds and deductions go through the quiet API and only failures are reported, each with its line
+    // number; console output is buffered for the whole run and written out in large blocks.
+    static class BatchRunner 
+    {
+        static final int OUTPUT_BUFFER_BYTES = 1 << 16;
+        final ExpenseTracker tracker;
+        long commands;
+        long added;
+        long deducted;
+        long failed;
+        BatchRunner(ExpenseTracker tracker) 
+        {
+            this.tracker = tracker;
+        }
+        // Exit status: 0 when every command succeeded, 1 when some failed, 2 for bad arguments
+        static int run(String[] args) 
+        {
+            String script = "-";
+            double limit = 0;
+            String currency = "USD";
+            try 
+            {
+                for (int i = 1; i < args.length; i++) 
+                {
+                    if (args[i].equals("--limit")) 
+                    {
+                        limit = Double.parseDouble(args[++i]);
+                    }
+                    else if (args[i].equals("--currency")) 
+                    {
+                        currency = args[++i];
+                    }
+                    else 
+                    {
+                        script = args[i];
+                    }
+                }
+            } 
+            catch (ArrayIndexOutOfBoundsException | NumberFormatException e) 
+            {
+                System.err.println("Usage: --batch [script|-] [--limit amount] [--currency code]");
+                return 2;
+            }
+            PrintStream console = System.out;
+            PrintStream buffered = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), OUTPUT_BUFFER_BYTES), false);
+            System.setOut(buffered);
+            ExpenseTracker tracker = new ExpenseTracker(limit, currency);
+            BatchRunner runner = new BatchRunner(tracker);
+            long start = System.nanoTime();
+            try (BufferedReader in = script.equals("-") 
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), OUTPUT_BUFFER_BYTES) 
+                    : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) 
+            {
+                runner.execute(in);
+            } 
+            catch (IOException e) 
+            {
+                System.out.println("Error reading commands: " + e.getMessage());
+                runner.failed++;
+            }
+            finally 
+            {
+                tracker.budgets.flush();
+                tracker.budgets.close();
+                tracker.closeJournal();
+                double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+                System.out.println("Batch finished: " + runner.commands + " commands (" + runner.added + " added, " + runner.deducted + " deducted, "
+                        + runner.failed + " failed) in " + String.format("%.3f", seconds) + "s.");
+                buffered.flush();
+                System.setOut(console);
+            }
+            return runner.failed == 0 ? 0 : 1;
+        }
+        void execute(BufferedReader in) throws IOException 
+        {
+            ArrayList<String> tokens = new ArrayList<>();
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) 
+            {
+                lineNumber++;
+                tokens.clear();
+                boolean complete = tokenize(line, tokens);
+                if (tokens.isEmpty()) 
+                {
+                    continue;
+                }
+                commands++;
+                if (!complete) 
+                {
+                    fail(lineNumber, "unterminated quote");
+                    continue;
+                }
+                try 
+                {
+                    String problem = execute(tokens);
+                    if (problem != null) 
+                    {
+                        fail(lineNumber, problem);
+                    }
+                } 
+                catch (RuntimeException e) 
+                {
+                    // Malformed numbers and dates, unknown types and the like
+                    fail(lineNumber, e.getMessage());
+                }
+            }
+        }
+        // Runs one command; returns why it failed, or null
+        String execute(List<String> tokens) throws IOException 
+        {
+            String command = tokens.get(0).toLowerCase(Locale.ROOT);
+            int arguments = tokens.size() - 1;
+            switch (command) 
+            {
+                case "add":
+                    if (arguments < 3 || arguments > 4) 
+                    {
+                        return "usage: add <category> <amount> <yyyy-MM-dd> [FIXED|VARIABLE]";
+                    }
+                    ExpenseType type = arguments == 4 ? ExpenseType.valueOf(tokens.get(4).toUpperCase(Locale.ROOT)) : ExpenseType.VARIABLE;
+                    if (!tracker.recordExpense(tokens.get(1), amount(tokens.get(2)), tokens.get(3), type)) 
+                    {
+                        return "amount should be greater than zero";
+                    }
+                    added++;
+                    return null;
+                case "deduct":
+                    if (arguments != 2) 
+                    {
+                        return "usage: deduct <category> <amount>";
+                    }
+                    ExpenseTracker.Deduction result = tracker.recordDeduction(tokens.get(1), amount(tokens.get(2)));
+                    if (result == ExpenseTracker.Deduction.INVALID_AMOUNT) 
+                    {
+                        return "invalid amount to deduct";
+                    }
+                    if (result == ExpenseTracker.Deduction.NO_MATCH) 
+                    {
+                        return "no expense in " + tokens.get(1) + " covers " + tokens.get(2);
+                    }
+                    deducted++;
+                    return null;
+                case "recurring":
+                    if (arguments != 4) 
+                    {
+                        return "usage: recurring <category> <amount> <start> <intervalDays>";
+                    }
+                    tracker.addRecurringExpense(tokens.get(1), amount(tokens.get(2)), tokens.get(3), Integer.parseInt(tokens.get(4)));
+                    return null;
+                case "limit":
+                    if (arguments != 1) 
+                    {
+                        return "usage: limit <amount>";
+                    }
+                    tracker.updateMonthlyLimit(Double.parseDouble(tokens.get(1)));
+                    return null;
+                case "budget":
+                    if (arguments != 2) 
+                    {
+                        return "usage: budget <category> <amount>";
+                    }
+                    tracker.setCategoryBudget(tokens.get(1), Double.parseDouble(tokens.get(2)));
+                    return null;
+                case "rates":
+                    if (arguments != 1) 
+                    {
+                        return "usage: rates <file>";
+                    }
+                    tracker.loadExchangeRates(tokens.get(1));
+                    return null;
+                case "load":
+                    if (arguments != 1) 
+                    {
+                        return "usage: load <file>";
+                    }
+                    BulkLoader loader = tracker.readCsv(tokens.get(1));
+                    System.out.println("Loaded " + loader.rowsLoaded + " rows from " + tokens.get(1) + ", " + loader.rejectedLines + " rejected lines.");
+                    return null;
+                case "save":
+                    if (arguments != 1) 
+                    {
+                        return "usage: save <file>";
+                    }
+                    tracker.writeCsv(tokens.get(1));
+                    return null;
+                case "snapshot":
+                    if (arguments != 2 || !(tokens.get(1).equalsIgnoreCase("save") || tokens.get(1).equalsIgnoreCase("load"))) 
+                    {
+                        return "usage: snapshot save|load <file>";
+                    }
+                    if (tokens.get(1).equalsIgnoreCase("save")) 
+                    {
+                        tracker.saveSnapshot(tokens.get(2));
+                    }
+                    else 
+                    {
+                        tracker.loadSnapshot(tokens.get(2));
+                    }
+                    return null;
+                case "journal":
+                    if (arguments != 1) 
+                    {
+                        return "usage: journal <dir>";
+                    }
+                    tracker.openJournal(tokens.get(1));
+                    return null;
+                case "reset":
+                    tracker.resetExpensesForNewYear();
+                    return null;
+                case "export":
+                    if (arguments < 1 || arguments > 2) 
+                    {
+                        return "usage: export <file> [text|table|csv|jsonl]";
+                    }
+                    ReportWriter.Format format = arguments == 2 ? ReportWriter.Format.valueOf(tokens.get(2).toUpperCase(Locale.ROOT)) : ReportWriter.Format.CSV;
+                    tracker.exportExpenses(tokens.get(1), format, 0, 0);
+                    return null;
+                case "metrics":
+                    System.out.print(tracker.metrics.dump());
+                    return null;
+                case "archive":
+                    if (arguments != 1) 
+                    {
+                        return "usage: archive <dir>";
+                    }
+                    tracker.openArchive(tokens.get(1));
+                    return null;
+                case "seal":
+                    if (arguments != 1) 
+                    {
+                        return "usage: seal <yyyy-MM-dd>";
+                    }
+                    try 
+                    {
+                        tracker.archiveBefore(tokens.get(1));
+                    } 
+                    catch (IllegalStateException e) 
+                    {
+                        return "no archive is open";
+                    }
+                    catch (IOException e) 
+                    {
+                        return "error archiving: " + e.getMessage();
+                    }
+                    return null;
+                case "report":
+                    return report(tokens);
+                default:
+                    return "unknown command " + tokens.get(0);
+            }
+        }
+        private String report(List<String> tokens) 
+        {
+            String kind = tokens.size() > 1 ? tokens.get(1).toLowerCase(Locale.ROOT) : "";
+            int arguments = tokens.size() - 2;
+            switch (kind) 
+            {
+                case "total":
+                    tracker.displayTotalExpenses();
+                    return null;
+                case "categories":
+                    tracker.displayCategoryReport();
+                    return null;
+                case "months":
+                    tracker.displayMonthlyReport();
+                    return null;
+                case "all":
+                    tracker.displayAllExpenses();
+                    return null;
+                case "recurring":
+                    tracker.generateRecurringReport();
+                    return null;
+                case "monthly":
+                    if (arguments == 0) 
+                    {
+                        tracker.generateMonthlyReport();
+                        return null;
+                    }
+                    java.time.YearMonth month = java.time.YearMonth.parse(tokens.get(2));
+                    tracker.generateMonthlyReport(month.getYear(), month.getMonthValue());
+                    return null;
+                case "yearly":
+                    if (arguments == 0) 
+                    {
+                        tracker.generateYearlyReport();
+                    }
+                    else 
+                    {
+                        tracker.generateYearlyReport(Integer.parseInt(tokens.get(2)));
+                    }
+                    return null;
+                case "custom":
+                    if (arguments != 2) 
+                    {
+                        return "usage: report custom <start> <end>";
+                    }
+                    tracker.generateCustomReport(tokens.get(2), tokens.get(3));
+                    return null;
+                case "archived":
+                    if (arguments != 2) 
+                    {
+                        return "usage: report archived <start> <end>";
+                    }
+                    tracker.displayArchivedExpenses(tokens.get(2), tokens.get(3));
+                    return null;
+                case "largest":
+                    if (arguments != 3) 
+                    {
+                        return "usage: report largest <k> <start> <end>";
+                    }
+                    tracker.displayLargestExpenses(Integer.parseInt(tokens.get(2)), tokens.get(3), tokens.get(4));
+                    return null;
+                case "category":
+                    if (arguments != 1) 
+                    {
+                        return "usage: report category <name>";
+                    }
+                    tracker.filterExpensesByCategory(tokens.get(2));
+                    return null;
+                case "date":
+                    if (arguments != 1) 
+                    {
+                        return "usage: report date <yyyy-MM-dd>";
+                    }
+                    tracker.filterExpensesByDate(tokens.get(2));
+                    return null;
+                default:
+                    return "usage: report total|categories|months|all|recurring|monthly [yyyy-MM]|yearly [yyyy]|custom|largest|category|date|archived";
+            }
+        }
+        private long amount(String text) 
         {
-            return "Category: " + category + ", Amount: " + currency + amount + ", Date: " + date + ", Type: " + type + ", Timestamp: " + timestamp;
+            return Money.toMinor(Double.parseDouble(text), tracker.scale);
         }
-    }
-    // Class to represent the Expense Tracker
-    static class ExpenseTracker
-    {
-        ArrayList<Expense> expenses;
-        double totalExpenses;
-        double monthlyLimit;
-        Map<String, Double> categoryTotals;
-        Map<String, Double> monthlyCategoryTotals;
-        Map<String, Double> userProfileExpenses;
-        String currency;
-        Map<String, ArrayList<Expense>> recurringExpenses;
-        public ExpenseTracker(double monthlyLimit, String currency) 
+        private void fail(long lineNumber, String problem) 
         {
-            this.expenses = new ArrayList<>();
-            this.totalExpenses = 0.0;
-            this.monthlyLimit = monthlyLimit;
-            this.categoryTotals = new HashMap<>();
-            this.monthlyCategoryTotals = new HashMap<>();
-            this.userProfileExpenses = new HashMap<>();
-            this.currency = currency;
-            this.recurringExpenses = new HashMap<>();
+            failed++;
+            System.out.println("Line " + lineNumber + ": " + problem);
         }
-        public void addExpense(String category, double amount, String date, ExpenseType type) 
+        // Splits on whitespace, keeping double-quoted runs together; false for an unterminated quote
+        static boolean tokenize(String line, List<String> tokens) 
         {
-            if (amount > 0) 
+            int i = 0;
+            int length = line.length();
+            while (i < length) 
             {
-                if (totalExpenses + amount > monthlyLimit) 
+                char c = line.charAt(i);
+                if (Character.isWhitespace(c)) 
                 {
-                    System.out.println("Warning: Adding this expense exceeds your monthly limit!");
+                    i++;
+                    continue;
                 }
-                expenses.add(new Expense(category, amount, date, type, currency));
-                totalExpenses += amount;
-                categoryTotals.put(category, categoryTotals.getOrDefault(category, 0.0) + amount);
-                // Update monthly category totals
-                String month = getMonthFromDate(date);
-                monthlyCategoryTotals.put(month, monthlyCategoryTotals.getOrDefault(month, 0.0) + amount);
-                System.out.println("Expense added successfully!");
-            }
-             else 
-             {
-                System.out.println("Amount should be greater than zero.");
+                if (c == '#') 
+                {
+                    break;
+                }
+                if (c == '"') 
+                {
+                    int close = line.indexOf('"', i + 1);
+                    if (close < 0) 
+                    {
+                        tokens.add(line.substring(i + 1));
+                        return false;
+                    }
+                    tokens.add(line.substring(i + 1, close));
+                    i = close + 1;
+                    continue;
+                }
+                int end = i;
+                while (end < length && !Character.isWhitespace(line.charAt(end))) 
+                {
+                    end++;
+                }
+                tokens.add(line.substring(i, end));
+                i = end;
             }
+            return true;
         }
-        public void addRecurringExpense(String category, double amount, String startDate, int intervalDays) 
+    }
+    // Embedded JSON query service over one tracker, on com.sun.net.httpserver:
+    //   GET  /total  /categories  /monthly?year=&month=  /yearly?year=  /custom?start=&end=[&category=]
+    //        /largest?k=&start=&end=  /stats  /metrics
+    //   POST /expenses?category=&amount=&date=[&type=]  /deductions?category=&amount=
+    // (POST parameters may also come as an application/x-www-form-urlencoded body). GET results are
+    // cached per normalized query and reused while the tracker's version (and the day, which moves
+    // recurring totals) is unchanged, so repeated dashboard polls cost a map lookup. Requests run on
+    // virtual threads where the JDK has them (21+, looked up reflectively so the source still builds
+    // on 17) and on a bounded pool of platform threads otherwise.
+    static class QueryService implements Closeable 
+    {
+        static final int CACHE_SIZE = 1024;
+        static final int PLATFORM_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        static 
         {
-            ExpenseType type = ExpenseType.RECURRING;
-            Expense recurringExpense = new Expense(category, amount, startDate, type, currency);
-            recurringExpenses.putIfAbsent(category, new ArrayList<>());
-            recurringExpenses.get(category).add(recurringExpense);
-            System.out.println("Recurring expense added for category: " + category + " with an interval of " + intervalDays + " days.");
+            // The JDK server otherwise leaves Nagle on, and small responses then wait out the client's delayed ACK (~40 ms)
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) 
+            {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
         }
-        public void generateRecurringReport() 
+        private static class CachedResponse 
         {
-            if (recurringExpenses.isEmpty()) 
+            final long version;
+            final int day;
+            final byte[] body;
+            CachedResponse(long version, int day, byte[] body) 
             {
-                System.out.println("No recurring expenses recorded.");
+                this.version = version;
+                this.day = day;
+                this.body = body;
             }
-             else 
+        }
+        // Thrown for requests the service rejects with 400
+        private static class BadRequest extends RuntimeException 
+        {
+            private static final long serialVersionUID = 1L;
+            BadRequest(String message) 
             {
-                System.out.println("Recurring Expense Breakdown:");
-                for (Map.Entry<String, ArrayList<Expense>> entry : recurringExpenses.entrySet()) 
-                {
-                    System.out.println("Category: " + entry.getKey());
-                    for (Expense expense : entry.getValue()) 
-                    {
-                        System.out.println(expense);
-                    }
-                }
+                super(message);
             }
         }
-        public void deductExpense(String category, double amount) 
+        private final ExpenseTracker tracker;
+        private final com.sun.net.httpserver.HttpServer server;
+        private final ExecutorService executor;
+        private final boolean virtualThreads;
+        private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) 
         {
-            if (amount <= 0 || amount > totalExpenses) 
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) 
             {
-                System.out.println("Invalid amount to deduct.");
-                return;
+                return size() > CACHE_SIZE;
             }
-            boolean found = false;
-            for (Expense expense : expenses) 
+        };
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        public QueryService(ExpenseTracker tracker, int port) throws IOException 
+        {
+            this.tracker = tracker;
+            this.server = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), 0);
+            ExecutorService virtual = virtualThreadExecutor();
+            this.virtualThreads = virtual != null;
+            this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(PLATFORM_THREADS, runnable -> 
+            {
+                Thread thread = new Thread(runnable, "expense-query");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executor);
+            server.createContext("/", this::handle);
+        }
+        public void start() 
+        {
+            server.start();
+        }
+        public int port() 
+        {
+            return server.getAddress().getPort();
+        }
+        public boolean usesVirtualThreads() 
+        {
+            return virtualThreads;
+        }
+        public long cacheHits() 
+        {
+            return hits.sum();
+        }
+        public long cacheMisses() 
+        {
+            return misses.sum();
+        }
+        @Override
+        public void close() 
+        {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        // --serve <port> [--limit amount] [--currency code] [--script file] [--metrics-dump seconds]: runs the
+        // batch script, if any, to seed the tracker, then serves until the process is killed. Metrics are
+        // registered with JMX and, given --metrics-dump, also printed to stderr at that period
+        static int run(String[] args) 
+        {
+            int port;
+            double limit = 0;
+            String currency = "USD";
+            String script = null;
+            long dumpSeconds = 0;
+            try 
             {
-                if (expense.category.equalsIgnoreCase(category) && expense.amount >= amount) 
+                port = Integer.parseInt(args[1]);
+                for (int i = 2; i < args.length; i++) 
                 {
-                    expense.amount -= amount;
-                    totalExpenses -= amount;
-                    categoryTotals.put(category, categoryTotals.getOrDefault(category, 0.0) - amount);
-                    if (expense.amount == 0) 
+                    if (args[i].equals("--limit")) 
                     {
-                        expenses.remove(expense);
+                        limit = Double.parseDouble(args[++i]);
+                    }
+                    else if (args[i].equals("--currency")) 
+                    {
+                        currency = args[++i];
+                    }
+                    else if (args[i].equals("--script")) 
+                    {
+                        script = args[++i];
+                    }
+                    else if (args[i].equals("--metrics-dump")) 
+                    {
+                        dumpSeconds = Long.parseLong(args[++i]);
+                    }
+                    else 
+                    {
+                        throw new IllegalArgumentException(args[i]);
                     }
-                    found = true;
-                    System.out.println("Expense deducted successfully!");
-                    break;
                 }
-            }
-            if (!found) 
+            } 
+            catch (RuntimeException e) 
             {
-                System.out.println("No matching expense found or insufficient amount in the category.");
+                System.err.println("Usage: --serve <port> [--limit amount] [--currency code] [--script file] [--metrics-dump seconds]");
+                return 2;
             }
-        }
-        public void displayAllExpenses() 
-        {
-            if (expenses.isEmpty()) 
+            ExpenseTracker tracker = new ExpenseTracker(limit, currency);
+            tracker.metrics.register("tracker");
+            if (dumpSeconds > 0) 
             {
-                System.out.println("No expenses recorded yet.");
+                tracker.metrics.startDump(System.err, dumpSeconds);
             }
-             else 
-             {
-                System.out.println("All Expenses:");
-                for (Expense expense : expenses) 
+            if (script != null) 
+            {
+                BatchRunner runner = new BatchRunner(tracker);
+                try (BufferedReader in = Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) 
                 {
-                    System.out.println(expense);
+                    runner.execute(in);
+                } 
+                catch (IOException e) 
+                {
+                    System.err.println("Error reading commands: " + e.getMessage());
+                    return 1;
                 }
             }
-        }
-        public void displayTotalExpenses() 
-        {
-            System.out.println("Total Expenses: " + currency + totalExpenses);
-            if (totalExpenses > monthlyLimit) 
+            try 
             {
-                System.out.println("Warning: You have exceeded your monthly expense limit!");
+                QueryService service = new QueryService(tracker, port);
+                service.start();
+                System.out.println("Serving on http://localhost:" + service.port() + "/ (" + (service.usesVirtualThreads() ? "virtual" : "platform") + " threads)");
+                Thread.currentThread().join();
+            } 
+            catch (IOException e) 
+            {
+                System.err.println("Error starting server: " + e.getMessage());
+                return 1;
             }
-            else 
+            catch (InterruptedException e) 
             {
-                System.out.println("You are within your monthly limit of " + currency + monthlyLimit);
+                Thread.currentThread().interrupt();
             }
+            return 0;
         }
-        public void displayCategoryReport() 
+        // Executors.newVirtualThreadPerTaskExecutor() when this JDK has it, otherwise null
+        private static ExecutorService virtualThreadExecutor() 
         {
-            if (categoryTotals.isEmpty()) 
+            try 
             {
-                System.out.println("No categories found.");
-            }
-             else 
-             {
-                System.out.println("Expense Breakdown by Category:");
-                for (Map.Entry<String, Double> entry : categoryTotals.entrySet()) 
-                {
-                    System.out.println("Category: " + entry.getKey() + ", Total: " + currency + entry.getValue());
-                }
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } 
+            catch (ReflectiveOperationException | RuntimeException e) 
+            {
+                // Missing before JDK 19 and a disabled preview on 19 and 20
+                return null;
             }
         }
-        public void displayMonthlyReport() 
+        private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException 
         {
-            if (monthlyCategoryTotals.isEmpty()) 
+            int status = 200;
+            byte[] body;
+            try 
             {
-                System.out.println("No monthly data found.");
-            }
-             else 
-             {
-                System.out.println("Monthly Expense Breakdown:");
-                for (Map.Entry<String, Double> entry : monthlyCategoryTotals.entrySet()) 
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                TreeMap<String, String> params = new TreeMap<>();
+                parseQuery(exchange.getRequestURI().getRawQuery(), params);
+                if (method.equals("GET")) 
                 {
-                    System.out.println("Month: " + entry.getKey() + ", Total Expenses: " + currency + entry.getValue());
+                    body = get(path, params);
                 }
-            }
-        }
-        public void saveToFile(String fileName) 
-        {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName, true))) 
-            {
-                writer.write("Monthly Limit: " + monthlyLimit + "\n");
-                for (Expense expense : expenses) 
+                else if (method.equals("POST")) 
                 {
-                    writer.write(expense.category + "," + expense.amount + "," + expense.date + "," + expense.type + "," + expense.timestamp + "," + expense.currency + "\n");
+                    try (InputStream in = exchange.getRequestBody()) 
+                    {
+                        parseQuery(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+                    }
+                    body = post(path, params);
+                }
+                else 
+                {
+                    throw new BadRequest("unsupported method " + method);
+                }
+                if (body == null) 
+                {
+                    status = 404;
+                    body = error("no such endpoint " + path);
                 }
-                System.out.println("Data saved to file.");
             } 
-            catch (IOException e) 
+            catch (BadRequest | IllegalArgumentException | java.time.DateTimeException e) 
             {
-                System.out.println("Error saving to file: " + e.getMessage());
+                // NumberFormatException is an IllegalArgumentException; bad dates are DateTimeExceptions
+                status = 400;
+                body = error(String.valueOf(e.getMessage()));
             }
-        }
-        public void loadFromFile(String fileName)
-         {
-            try (BufferedReader reader = new BufferedReader(new FileReader(fileName)))
-             {
-                String line = reader.readLine();
-                if (line != null && line.startsWith("Monthly Limit: "))
-                 {
-                    monthlyLimit = Double.parseDouble(line.replace("Monthly Limit: ", ""));
-                }
-                while ((line = reader.readLine()) != null)
-                 {
-                    String[] parts = line.split(",");
-                    if (parts.length == 6) {
-                        String category = parts[0];
-                        double amount = Double.parseDouble(parts[1]);
-                        String date = parts[2];
-                        ExpenseType type = ExpenseType.valueOf(parts[3].toUpperCase());
-                        String timestamp = parts[4];
-                        String currency = parts[5];
-                        addExpense(category, amount, date, type);
-                    }
-                }
-                System.out.println("Data loaded from file.");
-            } catch (IOException e) {
-                System.out.println("Error loading from file: " + e.getMessage());
+            catch (RuntimeException e) 
+            {
+                status = 500;
+                body = error(String.valueOf(e));
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) 
+            {
+                out.write(body);
             }
-         }
-        public void updateMonthlyLimit(double newLimit) 
-        {
-            this.monthlyLimit = newLimit;
-            System.out.println("Monthly expense limit updated to " + currency + newLimit);
-        }
-        public void sortExpensesByAmount() 
-        {
-            expenses.sort(Comparator.comparingDouble(e -> e.amount));
-            System.out.println("Expenses sorted by amount.");
-        }
-
-        public void sortExpensesByDate() 
-        {
-            expenses.sort(Comparator.comparing(e -> e.date));
-            System.out.println("Expenses sorted by date.");
         }
-        public void generateMonthlyReport() 
+        // Cached GET; null for unknown paths
+        private byte[] get(String path, TreeMap<String, String> params) 
         {
-            double monthTotal = 0;
-            for (Expense expense : expenses) 
+            if (path.equals("/stats")) 
+            {
+                return render(stats());
+            }
+            if (path.equals("/metrics")) 
+            {
+                return render(metrics());
+            }
+            String key = path + '?' + params;
+            long version = tracker.version();
+            int day = ExpenseTracker.today();
+            CachedResponse cached;
+            synchronized (cache) 
+            {
+                cached = cache.get(key);
+            }
+            if (cached != null && cached.version == version && cached.day == day) 
             {
-                monthTotal += expense.amount;
+                hits.increment();
+                return cached.body;
             }
-            System.out.println("Monthly Report: Total expenses for the month: " + currency + monthTotal);
-            if (monthTotal > monthlyLimit) 
+            misses.increment();
+            StringBuilder json = query(path, params);
+            if (json == null) 
             {
-                System.out.println("Warning: You've exceeded your monthly limit by " + currency + (monthTotal - monthlyLimit));
-            } else 
+                return null;
+            }
+            // Stamped with the version read before the query ran: a change that lands meanwhile only costs a miss
+            byte[] body = render(json);
+            synchronized (cache) 
             {
-                System.out.println("You're within the monthly limit by " + currency + (monthlyLimit - monthTotal));
+                cache.put(key, new CachedResponse(version, day, body));
             }
+            return body;
         }
-        public void generateYearlyReport() 
+        private StringBuilder query(String path, Map<String, String> params) 
         {
-            double yearTotal = 0;
-            for (Expense expense : expenses) 
+            StringBuilder json = new StringBuilder(256);
+            switch (path) 
             {
-                yearTotal += expense.amount;
+                case "/total":
+                    amount(json.append("{\"currency\":\"").append(tracker.currency).append("\",\"total\":"), tracker.grandTotal());
+                    return amount(json.append(",\"limit\":"), tracker.monthlyLimit).append('}');
+                case "/categories":
+                    json.append("{\"categories\":[");
+                    String separator = "";
+                    for (Map.Entry<String, Long> entry : tracker.categoryBreakdown().entrySet()) 
+                    {
+                        ReportWriter.json(json.append(separator).append("{\"category\":"), entry.getKey()).append(",\"total\":");
+                        amount(json, entry.getValue()).append('}');
+                        separator = ",";
+                    }
+                    return json.append("]}");
+                case "/monthly":
+                    int year = Integer.parseInt(required(params, "year"));
+                    int month = Integer.parseInt(required(params, "month"));
+                    int firstDay = DateCodec.epochDay(year, month, 1);
+                    return summary(json, tracker.summarize(DateCodec.format(firstDay), DateCodec.format(firstDay + DateCodec.lengthOfMonth(year, month) - 1), params.get("category")));
+                case "/yearly":
+                    int wholeYear = Integer.parseInt(required(params, "year"));
+                    return summary(json, tracker.summarize(DateCodec.format(DateCodec.epochDay(wholeYear, 1, 1)), DateCodec.format(DateCodec.epochDay(wholeYear, 12, 31)), params.get("category")));
+                case "/custom":
+                    return summary(json, tracker.summarize(required(params, "start"), required(params, "end"), params.get("category")));
+                case "/largest":
+                    int k = Integer.parseInt(params.getOrDefault("k", "10"));
+                    json.append("{\"expenses\":[");
+                    String comma = "";
+                    for (Expense expense : tracker.largestExpenses(k, required(params, "start"), required(params, "end"))) 
+                    {
+                        ReportWriter.json(json.append(comma).append("{\"category\":"), expense.category).append(",\"amount\":");
+                        Money.appendTo(json, expense.amount, Money.scaleOf(expense.currency)).append(",\"currency\":");
+                        ReportWriter.json(json, expense.currency).append(",\"date\":\"").append(expense.date).append("\",\"type\":\"").append(expense.type).append("\"}");
+                        comma = ",";
+                    }
+                    return json.append("]}");
+                default:
+                    return null;
             }
-            System.out.println("Yearly Report: Total expenses for the year: " + currency + yearTotal);
         }
-        public void filterExpensesByCategory(String category) 
+        // Ingestion is never cached; the version bump it causes retires cached reports
+        private byte[] post(String path, Map<String, String> params) 
         {
-            boolean found = false;
-            for (Expense expense : expenses) 
+            switch (path) 
             {
-                if (expense.category.equalsIgnoreCase(category)) 
-                {
-                    System.out.println(expense);
-                    found = true;
-                }
+                case "/expenses":
+                    String type = params.getOrDefault("type", "VARIABLE").toUpperCase(Locale.ROOT);
+                    long amount = Money.toMinor(Double.parseDouble(required(params, "amount")), tracker.scale);
+                    if (!tracker.recordExpense(required(params, "category"), amount, required(params, "date"), ExpenseType.valueOf(type))) 
+                    {
+                        throw new BadRequest("amount should be greater than zero");
+                    }
+                    return render(new StringBuilder("{\"added\":true,\"version\":").append(tracker.version()).append('}'));
+                case "/deductions":
+                    long deduction = Money.toMinor(Double.parseDouble(required(params, "amount")), tracker.scale);
+                    ExpenseTracker.Deduction result = tracker.recordDeduction(required(params, "category"), deduction);
+                    if (result != ExpenseTracker.Deduction.DEDUCTED) 
+                    {
+                        throw new BadRequest(result == ExpenseTracker.Deduction.INVALID_AMOUNT ? "invalid amount to deduct" : "no matching expense covers the amount");
+                    }
+                    return render(new StringBuilder("{\"deducted\":true,\"version\":").append(tracker.version()).append('}'));
+                default:
+                    return null;
             }
-            if (!found) 
+        }
+        private StringBuilder stats() 
+        {
+            return new StringBuilder("{\"version\":").append(tracker.version()).append(",\"cacheHits\":").append(hits.sum())
+                    .append(",\"cacheMisses\":").append(misses.sum()).append(",\"virtualThreads\":").append(virtualThreads).append('}');
+        }
+        private StringBuilder metrics() 
+        {
+            StringBuilder json = new StringBuilder(2048).append('{');
+            String separator = "";
+            for (Map.Entry<String, Long> entry : tracker.metrics.values().entrySet()) 
             {
-                System.out.println("No expenses found in the category: " + category);
+                ReportWriter.json(json.append(separator), entry.getKey()).append(':').append(entry.getValue());
+                separator = ",";
             }
+            return json.append('}');
         }
-        public void filterExpensesByDate(String date) 
+        private StringBuilder summary(StringBuilder json, ReportEngine.Summary summary) 
         {
-            boolean found = false;
-            for (Expense expense : expenses) 
+            json.append("{\"start\":\"");
+            DateCodec.append(json, summary.startDay).append("\",\"end\":\"");
+            DateCodec.append(json, summary.endDay).append("\",\"total\":");
+            amount(json, summary.grandTotal()).append(",\"count\":").append(summary.total.count);
+            if (summary.total.count > 0) 
             {
-                if (expense.date.equals(date)) 
-                {
-                    System.out.println(expense);
-                    found = true;
-                }
+                amount(json.append(",\"smallest\":"), summary.total.min);
+                amount(json.append(",\"largest\":"), summary.total.max);
             }
-            if (!found) 
+            json.append(",\"categories\":[");
+            String separator = "";
+            for (Map.Entry<String, RollupCube.Aggregate> entry : summary.byCategory.entrySet()) 
             {
-                System.out.println("No expenses found on the date: " + date);
+                ReportWriter.json(json.append(separator).append("{\"category\":"), entry.getKey()).append(",\"total\":");
+                amount(json, entry.getValue().sum).append(",\"count\":").append(entry.getValue().count).append('}');
+                separator = ",";
             }
-        }
-        public void generateCustomReport(String startDate, String endDate) 
-        {
-            double customTotal = 0;
-            for (Expense expense : expenses) 
+            json.append("],\"types\":{");
+            separator = "";
+            for (Map.Entry<ExpenseType, RollupCube.Aggregate> entry : summary.byType.entrySet()) 
             {
-                if (isWithinDateRange(expense.date, startDate, endDate)) 
-                {
-                    customTotal += expense.amount;
-                }
+                amount(json.append(separator).append('"').append(entry.getKey()).append("\":"), entry.getValue().sum);
+                separator = ",";
+            }
+            json.append("},\"recurring\":{");
+            separator = "";
+            for (Map.Entry<String, Long> entry : summary.recurringByCategory.entrySet()) 
+            {
+                amount(ReportWriter.json(json.append(separator), entry.getKey()).append(':'), entry.getValue());
+                separator = ",";
             }
-            System.out.println("Custom Report: Total expenses from " + startDate + " to " + endDate + ": " + currency + customTotal);
+            return json.append("}}");
         }
-        private boolean isWithinDateRange(String expenseDate, String startDate, String endDate) 
+        private StringBuilder amount(StringBuilder json, long minor) 
         {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-            LocalDate expDate = LocalDate.parse(expenseDate, formatter);
-            LocalDate start = LocalDate.parse(startDate, formatter);
-            LocalDate end = LocalDate.parse(endDate, formatter);
-            return (expDate.isEqual(start) || expDate.isAfter(start)) && (expDate.isEqual(end) || expDate.isBefore(end));
+            return Money.appendTo(json, minor, tracker.scale);
         }
-        private String getMonthFromDate(String date) 
+        private static String required(Map<String, String> params, String name) 
         {
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-            LocalDate localDate = LocalDate.parse(date, formatter);
-            return localDate.getMonth().toString();
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) 
+            {
+                throw new BadRequest("missing parameter " + name);
+            }
+            return value;
         }
-        // Added Method to Track Savings Progress
-        public void trackSavings(double savingsGoal) 
+        private static void parseQuery(String query, Map<String, String> params) 
         {
-            double savingsProgress = savingsGoal - totalExpenses;
-            System.out.println("Savings Goal: " + currency + savingsGoal);
-            if (savingsProgress > 0) 
+            if (query == null || query.isEmpty()) 
             {
-                System.out.println("You're on track! You have " + currency + savingsProgress + " left to reach your goal.");
-            } else 
+                return;
+            }
+            for (String pair : query.split("&")) 
             {
-                System.out.println("Great job! You've exceeded your savings goal by " + currency + (-savingsProgress));
+                int equals = pair.indexOf('=');
+                String name = java.net.URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                String value = equals < 0 ? "" : java.net.URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                if (!name.isEmpty()) 
+                {
+                    params.put(name, value);
+                }
             }
         }
-        // Method to Reset Expenses at the Beginning of New Year
-        public void resetExpensesForNewYear() 
+        private static byte[] error(String message) 
         {
-            expenses.clear();
-            totalExpenses = 0.0;
-            categoryTotals.clear();
-            monthlyCategoryTotals.clear();
-            recurringExpenses.clear();
-            System.out.println("Expenses have been reset for the new year.");
+            return render(ReportWriter.json(new StringBuilder("{\"error\":"), message).append('}'));
+        }
+        private static byte[] render(StringBuilder json) 
+        {
+            return json.append('\n').toString().getBytes(StandardCharsets.UTF_8);
         }
     }
     public static void main(String[] args) 
     {
+        if (args.length > 0 && args[0].equals("--batch")) 
+        {
+            System.exit(BatchRunner.run(args));
+        }
+        if (args.length > 0 && args[0].equals("--serve")) 
+        {
+            System.exit(QueryService.run(args));
+        }
         Scanner scanner = new Scanner(System.in);
         ExpenseTracker tracker = null;
 
@@ -370,6 +7508,7 @@ public class PersonalExpenseTracker
         System.out.print("Select your currency (e.g., USD, EUR, GBP): ");
         String currency = scanner.nextLine();
         tracker = new ExpenseTracker(monthlyLimit, currency);
+        tracker.metrics.register("tracker");
         while (true) 
         {
             System.out.println("\nPersonal Expense Tracker");
@@ -393,7 +7532,18 @@ public class PersonalExpenseTracker
             System.out.println("18. Reset Expenses for New Year");
             System.out.println("19. Add Recurring Expense");
             System.out.println("20. View Recurring Expenses");
-            System.out.println("21. Exit");
+            System.out.println("21. Save Snapshot");
+            System.out.println("22. Load Snapshot");
+            System.out.println("23. Open Journal");
+            System.out.println("24. Compact Journal");
+            System.out.println("25. Export Expenses");
+            System.out.println("26. View Largest Expenses");
+            System.out.println("27. Load Exchange Rates");
+            System.out.println("28. Set Category Budget");
+            System.out.println("29. View Metrics");
+            System.out.println("30. Archive Closed Periods");
+            System.out.println("31. View Archived Expenses");
+            System.out.println("32. Exit");
             System.out.print("Enter your choice: ");
             int choice = scanner.nextInt();
             if (choice == 1) 
@@ -540,6 +7690,122 @@ public class PersonalExpenseTracker
             }
              else if (choice == 21) 
              {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter filename to save snapshot: ");
+                String fileName = scanner.nextLine();
+                tracker.saveSnapshot(fileName);
+
+            }
+             else if (choice == 22) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter filename to load snapshot: ");
+                String fileName = scanner.nextLine();
+                tracker.loadSnapshot(fileName);
+
+            }
+             else if (choice == 23) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter journal directory: ");
+                String directory = scanner.nextLine();
+                tracker.openJournal(directory);
+
+            }
+             else if (choice == 24) 
+             {
+                tracker.compactJournal();
+
+            }
+             else if (choice == 25) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter filename to export to: ");
+                String fileName = scanner.nextLine();
+                System.out.print("Enter format (TEXT, TABLE, CSV, JSONL): ");
+                String format = scanner.nextLine().trim().toUpperCase(Locale.ROOT);
+                System.out.print("Enter first row to export (1 for the start): ");
+                long firstRow = scanner.nextLong();
+                System.out.print("Enter maximum number of rows (0 for all): ");
+                long limit = scanner.nextLong();
+                try 
+                {
+                    tracker.exportExpenses(fileName, ReportWriter.Format.valueOf(format), firstRow - 1, limit);
+                } 
+                catch (IllegalArgumentException e) 
+                {
+                    System.out.println("Unknown format: " + format);
+                }
+
+            }
+             else if (choice == 26) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter start date (yyyy-MM-dd): ");
+                String startDate = scanner.nextLine();
+                System.out.print("Enter end date (yyyy-MM-dd): ");
+                String endDate = scanner.nextLine();
+                System.out.print("Enter number of expenses to show: ");
+                int count = scanner.nextInt();
+                tracker.displayLargestExpenses(count, startDate, endDate);
+
+            }
+             else if (choice == 27) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter rates file name (currency,yyyy-MM-dd,rate per line): ");
+                String fileName = scanner.nextLine();
+                tracker.loadExchangeRates(fileName);
+
+            }
+             else if (choice == 28) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter category: ");
+                String category = scanner.nextLine();
+                System.out.print("Enter monthly budget (0 to remove): ");
+                double budget = scanner.nextDouble();
+                tracker.setCategoryBudget(category, budget);
+
+            }
+             else if (choice == 29) 
+             {
+                System.out.print(tracker.metrics.dump());
+
+            }
+             else if (choice == 30) 
+             {
+                scanner.nextLine(); // Consume newline
+                if (tracker.archive == null) 
+                {
+                    System.out.print("Enter archive directory: ");
+                    tracker.openArchive(scanner.nextLine());
+                }
+                if (tracker.archive != null) 
+                {
+                    System.out.print("Archive expenses dated before (yyyy-MM-dd, blank for the start of this month): ");
+                    String cutoff = scanner.nextLine().trim();
+                    tracker.archiveExpensesBefore(cutoff.isEmpty() ? LocalDate.now().withDayOfMonth(1).toString() : cutoff);
+                }
+
+            }
+             else if (choice == 31) 
+             {
+                scanner.nextLine(); // Consume newline
+                System.out.print("Enter start date (yyyy-MM-dd): ");
+                String startDate = scanner.nextLine();
+                System.out.print("Enter end date (yyyy-MM-dd): ");
+                String endDate = scanner.nextLine();
+                tracker.displayArchivedExpenses(startDate, endDate);
+
+            }
+             else if (choice == 32) 
+             {
+                // Let queued budget alerts print before the prompt goes away
+                tracker.budgets.flush();
+                tracker.budgets.close();
+                tracker.metrics.close();
+                tracker.closeJournal();
                 System.out.println("Exiting...");
                 break;
 
@@ -0,0 +1,249 @@
+package expensetracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stress test for concurrent mode: writer threads add rows while reader threads run reports and one
+// thread deducts, all against a journaled tracker. Afterwards the grand total, category totals, row
+// count, date-index total and full-range summary must equal what the threads added less what was
+// deducted, and replaying the journal into a fresh tracker must rebuild the same rows in the same order.
+// During the run, readers also check that the running total and the date index agree under one read lock.
+// Exits with status 1 on any mismatch.
+//   java -cp target/benchmarks.jar expensetracker.ConcurrentIngestStressTest [writers] [rowsPerWriter] [readers]
+public class ConcurrentIngestStressTest 
+{
+    static final int CATEGORIES = 50;
+    static final int SPAN_DAYS = 1825;
+    // Rows are at least MIN_AMOUNT and a category sees at most MAX_DEDUCTIONS of at most MAX_DEDUCTION
+    // each, so no row is ever emptied and the row count stays exactly the number of adds
+    static final int MIN_AMOUNT = 1_000;
+    static final int MAX_DEDUCTION = 5;
+    static final int MAX_DEDUCTIONS = 100;
+    public static void main(String[] args) throws Exception 
+    {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rowsPerWriter = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        Path dir = Files.createTempDirectory("stress-journal-");
+        SyntheticLedger.muteConsole();
+        PersonalExpenseTracker.ExpenseTracker tracker = new PersonalExpenseTracker.ExpenseTracker(1e12, "USD", true);
+        tracker.openJournal(dir.toString());
+        ConcurrentHashMap<String, LongAdder> expected = new ConcurrentHashMap<>();
+        LongAdder expectedTotal = new LongAdder();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong reports = new AtomicLong();
+        AtomicLong deductions = new AtomicLong();
+        AtomicLong inconsistent = new AtomicLong();
+        int firstDay = PersonalExpenseTracker.DateCodec.parse(SyntheticLedger.date(0));
+        int lastDay = PersonalExpenseTracker.DateCodec.parse(SyntheticLedger.date(SPAN_DAYS - 1));
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers + readers + 1];
+        Throwable[] failure = new Throwable[1];
+        Thread.UncaughtExceptionHandler handler = (thread, e) -> 
+        {
+            synchronized (failure) 
+            {
+                failure[0] = e;
+            }
+        };
+        for (int i = 0; i < writers; i++) 
+        {
+            int id = i;
+            threads[i] = new Thread(() -> 
+            {
+                Random random = new Random(id);
+                long[] sums = new long[CATEGORIES];
+                await(start);
+                for (int n = 0; n < rowsPerWriter; n++) 
+                {
+                    int category = random.nextInt(CATEGORIES);
+                    long amount = MIN_AMOUNT + random.nextInt(100_000);
+                    PersonalExpenseTracker.ExpenseType type = SyntheticLedger.TYPES[random.nextInt(SyntheticLedger.TYPES.length)];
+                    tracker.recordExpense(SyntheticLedger.category(category), amount, SyntheticLedger.date(random.nextInt(SPAN_DAYS)), type);
+                    sums[category] += amount;
+                }
+                for (int category = 0; category < CATEGORIES; category++) 
+                {
+                    expected.computeIfAbsent(SyntheticLedger.category(category), key -> new LongAdder()).add(sums[category]);
+                    expectedTotal.add(sums[category]);
+                }
+            }, "writer-" + i);
+        }
+        for (int i = 0; i < readers; i++) 
+        {
+            int id = i;
+            threads[writers + i] = new Thread(() -> 
+            {
+                Random random = new Random(1000 + id);
+                await(start);
+                while (writing.get()) 
+                {
+                    switch (random.nextInt(5)) 
+                    {
+                        case 0:
+                            tracker.grandTotal();
+                            break;
+                        case 1:
+                            tracker.categoryBreakdown();
+                            break;
+                        case 2:
+                            tracker.monthTotal(2020 + random.nextInt(5), 1 + random.nextInt(12));
+                            break;
+                        case 3:
+                            // What a report sees under the read lock: the totals and the indexed rows must agree
+                            tracker.drain();
+                            tracker.lock.readLock().lock();
+                            try 
+                            {
+                                if (tracker.totalExpenses.sum() != tracker.dateIndex.total(firstDay, lastDay)) 
+                                {
+                                    inconsistent.incrementAndGet();
+                                }
+                            } 
+                            finally 
+                            {
+                                tracker.lock.readLock().unlock();
+                            }
+                            break;
+                        default:
+                            int startOffset = random.nextInt(SPAN_DAYS - 90);
+                            tracker.summarize(SyntheticLedger.date(startOffset), SyntheticLedger.date(startOffset + 89));
+                            break;
+                    }
+                    reports.incrementAndGet();
+                }
+            }, "reader-" + i);
+        }
+        threads[writers + readers] = new Thread(() -> 
+        {
+            Random random = new Random(-1);
+            int[] perCategory = new int[CATEGORIES];
+            await(start);
+            while (writing.get()) 
+            {
+                int category = random.nextInt(CATEGORIES);
+                if (perCategory[category] == MAX_DEDUCTIONS) 
+                {
+                    continue;
+                }
+                long amount = 1 + random.nextInt(MAX_DEDUCTION);
+                if (tracker.recordDeduction(SyntheticLedger.category(category), amount) == PersonalExpenseTracker.ExpenseTracker.Deduction.DEDUCTED) 
+                {
+                    perCategory[category]++;
+                    expected.computeIfAbsent(SyntheticLedger.category(category), key -> new LongAdder()).add(-amount);
+                    expectedTotal.add(-amount);
+                    deductions.incrementAndGet();
+                }
+                Thread.yield();
+            }
+        }, "deducter");
+        for (Thread thread : threads) 
+        {
+            thread.setUncaughtExceptionHandler(handler);
+            thread.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < writers; i++) 
+        {
+            threads[i].join();
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        writing.set(false);
+        for (int i = writers; i < threads.length; i++) 
+        {
+            threads[i].join();
+        }
+        long rows = (long) writers * rowsPerWriter;
+        System.err.printf("writers=%d readers=%d rows=%d adds=%.0f rows/s reports=%d deductions=%d%n", writers, readers, rows, rows / elapsed, reports.get(), deductions.get());
+        int mismatches = 0;
+        if (failure[0] != null) 
+        {
+            failure[0].printStackTrace();
+            mismatches++;
+        }
+        mismatches += check("inconsistent reads", 0, inconsistent.get());
+        long total = expectedTotal.sum();
+        mismatches += check("grandTotal", total, tracker.grandTotal());
+        Map<String, Long> breakdown = tracker.categoryBreakdown();
+        for (Map.Entry<String, LongAdder> category : expected.entrySet()) 
+        {
+            mismatches += check("category " + category.getKey(), category.getValue().sum(), breakdown.getOrDefault(category.getKey(), 0L));
+        }
+        mismatches += check("categories", expected.size(), breakdown.size());
+        mismatches += check("rows", rows, tracker.expenses.liveCount());
+        mismatches += check("dateIndex total", total, tracker.dateIndex.total(firstDay, lastDay));
+        PersonalExpenseTracker.ReportEngine.Summary summary = tracker.summarize(SyntheticLedger.date(0), SyntheticLedger.date(SPAN_DAYS - 1));
+        mismatches += check("summary total", total, summary.total.sum);
+        mismatches += check("summary count", rows, summary.total.count);
+        tracker.closeJournal();
+        PersonalExpenseTracker.ExpenseTracker recovered = new PersonalExpenseTracker.ExpenseTracker(1e12, "USD");
+        recovered.openJournal(dir.toString());
+        mismatches += check("recovered grandTotal", total, recovered.grandTotal());
+        mismatches += compareRows(tracker.expenses, recovered.expenses);
+        recovered.closeJournal();
+        deleteDirectory(dir);
+        System.err.println(mismatches == 0 ? "OK" : mismatches + " mismatches");
+        if (mismatches != 0) 
+        {
+            System.exit(1);
+        }
+    }
+    static void await(CountDownLatch latch) 
+    {
+        try 
+        {
+            latch.await();
+        }
+        catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    static int check(String what, long expected, long actual) 
+    {
+        if (expected == actual) 
+        {
+            return 0;
+        }
+        System.err.println(what + ": expected " + expected + ", got " + actual);
+        return 1;
+    }
+    // Deductions land on the first covering row, so recovery is only right if the journal kept the store's row order
+    static int compareRows(PersonalExpenseTracker.ExpenseStore live, PersonalExpenseTracker.ExpenseStore recovered) 
+    {
+        if (check("recovered rows", live.liveCount(), recovered.liveCount()) != 0) 
+        {
+            return 1;
+        }
+        for (int row = 0; row < live.size(); row++) 
+        {
+            if (live.amounts[row] != recovered.amounts[row] || live.epochDays[row] != recovered.epochDays[row]
+                    || !live.categories.valueOf(live.categoryIds[row]).equals(recovered.categories.valueOf(recovered.categoryIds[row]))) 
+            {
+                System.err.println("recovered row " + row + " differs from the live row");
+                return 1;
+            }
+        }
+        return 0;
+    }
+    static void deleteDirectory(Path dir) throws IOException 
+    {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) 
+        {
+            for (Path file : (Iterable<Path>) files::iterator) 
+            {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
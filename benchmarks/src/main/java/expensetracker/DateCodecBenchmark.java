@@ -0,0 +1,58 @@
+package expensetracker;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// DateCodec against the java.time path it replaced (a formatter built per call plus LocalDate.parse).
+// Run with -prof gc to see the allocation difference per operation.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DateCodecBenchmark 
+{
+    final String[] dates = new String[1024];
+    final int[] epochDays = new int[dates.length];
+    final StringBuilder text = new StringBuilder(16);
+    int next;
+    @Setup(Level.Trial)
+    public void setUp() 
+    {
+        for (int i = 0; i < dates.length; i++) 
+        {
+            epochDays[i] = (int) SyntheticLedger.FIRST_DAY.toEpochDay() + i * 7 % 1825;
+            dates[i] = LocalDate.ofEpochDay(epochDays[i]).toString();
+        }
+    }
+    @Benchmark
+    public int parseWithFormatter() 
+    {
+        return (int) LocalDate.parse(dates[next++ & 1023], DateTimeFormatter.ofPattern("yyyy-MM-dd")).toEpochDay();
+    }
+    @Benchmark
+    public int parseWithCodec() 
+    {
+        return PersonalExpenseTracker.DateCodec.parse(dates[next++ & 1023]);
+    }
+    @Benchmark
+    public String formatWithLocalDate() 
+    {
+        return LocalDate.ofEpochDay(epochDays[next++ & 1023]).toString();
+    }
+    @Benchmark
+    public String formatWithCodec() 
+    {
+        return PersonalExpenseTracker.DateCodec.format(epochDays[next++ & 1023]);
+    }
+    // The path report rendering takes: digits appended into a reused buffer, no String at all
+    @Benchmark
+    public int appendWithCodec() 
+    {
+        text.setLength(0);
+        return PersonalExpenseTracker.DateCodec.append(text, epochDays[next++ & 1023]).length();
+    }
+}
@@ -0,0 +1,58 @@
+package expensetracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.openjdk.jmh.annotations.*;
+
+// A tracker preloaded with a synthetic ledger. Size, category cardinality, date span and the
+// number of recurring rules are JMH parameters, e.g. -p rows=10000000 -p categories=1000 -p recurringRules=1000.
+// foreignPercent puts that share of rows in EUR/JPY, converted through a rate table that changes weekly
+@State(Scope.Benchmark)
+public class LedgerState 
+{
+    @Param({"10000", "1000000"})
+    public int rows;
+    @Param({"50"})
+    public int categories;
+    @Param({"1825"})
+    public int spanDays;
+    @Param({"0"})
+    public int recurringRules;
+    @Param({"0"})
+    public int foreignPercent;
+    File csv;
+    File rates;
+    PersonalExpenseTracker.ExpenseTracker tracker;
+    final Random random = new Random(42);
+    @Setup(Level.Trial)
+    public void setUp() throws IOException 
+    {
+        SyntheticLedger.muteConsole();
+        csv = SyntheticLedger.write(rows, categories, spanDays, foreignPercent, 1);
+        rates = SyntheticLedger.writeRates(spanDays, 7, 1);
+        tracker = load();
+    }
+    PersonalExpenseTracker.ExpenseTracker load() 
+    {
+        PersonalExpenseTracker.ExpenseTracker loaded = new PersonalExpenseTracker.ExpenseTracker(1e12, "USD");
+        if (foreignPercent > 0) 
+        {
+            loaded.loadExchangeRates(rates.getPath());
+        }
+        loaded.loadFromFile(csv.getPath());
+        for (int i = 0; i < recurringRules; i++) 
+        {
+            loaded.addRecurringExpense(SyntheticLedger.category(i % categories), 9.99, SyntheticLedger.date(0), 1 + i % 30);
+        }
+        return loaded;
+    }
+    String randomCategory() 
+    {
+        return SyntheticLedger.category(random.nextInt(categories));
+    }
+    String randomDate() 
+    {
+        return SyntheticLedger.date(random.nextInt(spanDays));
+    }
+}
@@ -0,0 +1,59 @@
+package expensetracker;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of the always-on metrics: the cheapest tracker operations with recording on and off, and the
+// bare histogram record. Compare the two metricsEnabled rows of each operation for the overhead
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark 
+{
+    @State(Scope.Benchmark)
+    public static class Recording 
+    {
+        @Param({"true", "false"})
+        public boolean metricsEnabled;
+        @Setup(Level.Trial)
+        public void setUp(LedgerState state) 
+        {
+            state.tracker.metrics.setEnabled(metricsEnabled);
+        }
+    }
+    @State(Scope.Thread)
+    public static class Bare 
+    {
+        final PersonalExpenseTracker.Metrics metrics = new PersonalExpenseTracker.Metrics();
+        final PersonalExpenseTracker.Metrics.Histogram histogram = metrics.timer("bare");
+    }
+    @Benchmark
+    public boolean recordExpense(LedgerState state, Recording recording) 
+    {
+        return state.tracker.recordExpense(state.randomCategory(), 1234, state.randomDate(), PersonalExpenseTracker.ExpenseType.VARIABLE);
+    }
+    @Benchmark
+    public PersonalExpenseTracker.ExpenseTracker.Deduction recordDeduction(LedgerState state, Recording recording) 
+    {
+        return state.tracker.recordDeduction(state.randomCategory(), 1);
+    }
+    // Served from the rollups and the running totals, so these time one call in Metrics.SAMPLE_EVERY
+    @Benchmark
+    public long monthTotal(LedgerState state, Recording recording) 
+    {
+        return state.tracker.monthTotal(2022, 1 + state.random.nextInt(12));
+    }
+    @Benchmark
+    public long grandTotal(LedgerState state, Recording recording) 
+    {
+        return state.tracker.grandTotal();
+    }
+    // Start plus recordSince, with nothing between
+    @Benchmark
+    public void histogramRecord(Bare bare) 
+    {
+        bare.histogram.recordSince(bare.metrics.start());
+    }
+}
@@ -0,0 +1,53 @@
+package expensetracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of moving a whole ledger to and from disk in the CSV and binary snapshot formats
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBenchmark 
+{
+    @State(Scope.Benchmark)
+    public static class Files 
+    {
+        File csvOut;
+        File snapshot;
+        @Setup(Level.Trial)
+        public void setUp(LedgerState state) throws IOException 
+        {
+            csvOut = File.createTempFile("ledger-out-", ".csv");
+            csvOut.deleteOnExit();
+            snapshot = File.createTempFile("ledger-", ".snap");
+            snapshot.deleteOnExit();
+            state.tracker.saveSnapshot(snapshot.getPath());
+        }
+    }
+    @Benchmark
+    public PersonalExpenseTracker.ExpenseTracker loadFromFile(LedgerState state) 
+    {
+        return state.load();
+    }
+    @Benchmark
+    public void saveToFile(LedgerState state, Files files) 
+    {
+        state.tracker.saveToFile(files.csvOut.getPath());
+    }
+    @Benchmark
+    public void saveSnapshot(LedgerState state, Files files) 
+    {
+        state.tracker.saveSnapshot(files.snapshot.getPath());
+    }
+    @Benchmark
+    public PersonalExpenseTracker.ExpenseTracker loadSnapshot(Files files) 
+    {
+        PersonalExpenseTracker.ExpenseTracker tracker = new PersonalExpenseTracker.ExpenseTracker(1e12, "USD");
+        tracker.loadSnapshot(files.snapshot.getPath());
+        return tracker;
+    }
+}
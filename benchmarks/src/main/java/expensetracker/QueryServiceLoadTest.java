@@ -0,0 +1,159 @@
+package expensetracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load test for the query service: a synthetic ledger is served on an ephemeral port and
+// each client thread issues a mix of report GETs and, at writePercent, expense POSTs that retire cached
+// results. Prints throughput, p50/p99/max latency and the cache hit ratio.
+//   java -cp target/benchmarks.jar expensetracker.QueryServiceLoadTest [rows] [clients] [seconds] [writePercent]
+public class QueryServiceLoadTest 
+{
+    static final int CATEGORIES = 50;
+    static final int SPAN_DAYS = 1825;
+    public static void main(String[] args) throws Exception 
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        File csv = SyntheticLedger.write(rows, CATEGORIES, SPAN_DAYS, 1);
+        PersonalExpenseTracker.ExpenseTracker tracker = new PersonalExpenseTracker.ExpenseTracker(1e12, "USD");
+        SyntheticLedger.muteConsole();
+        tracker.loadFromFile(csv.getPath());
+        try (PersonalExpenseTracker.QueryService service = new PersonalExpenseTracker.QueryService(tracker, 0)) 
+        {
+            service.start();
+            String base = "http://localhost:" + service.port();
+            HttpClient client = HttpClient.newHttpClient();
+            // Warm the JIT and the client's connections before measuring
+            run(client, base, clients, 3_000_000_000L, writePercent, new long[clients][], new AtomicLong());
+            long hitsBefore = service.cacheHits();
+            long missesBefore = service.cacheMisses();
+            long[][] latencies = new long[clients][];
+            AtomicLong failures = new AtomicLong();
+            long started = System.nanoTime();
+            int[] counts = run(client, base, clients, seconds * 1_000_000_000L, writePercent, latencies, failures);
+            double elapsed = (System.nanoTime() - started) / 1e9;
+            int total = 0;
+            for (int count : counts) 
+            {
+                total += count;
+            }
+            long[] all = new long[total];
+            int at = 0;
+            for (int i = 0; i < clients; i++) 
+            {
+                System.arraycopy(latencies[i], 0, all, at, counts[i]);
+                at += counts[i];
+            }
+            Arrays.sort(all);
+            long hits = service.cacheHits() - hitsBefore;
+            long misses = service.cacheMisses() - missesBefore;
+            System.err.printf("rows=%d clients=%d writes=%d%% threads=%s%n", rows, clients, writePercent, service.usesVirtualThreads() ? "virtual" : "platform");
+            System.err.printf("requests=%d failures=%d throughput=%.0f req/s%n", total, failures.get(), total / elapsed);
+            System.err.printf("p50=%.3f ms p99=%.3f ms max=%.3f ms%n", percentile(all, 50), percentile(all, 99), all.length == 0 ? 0 : all[all.length - 1] / 1e6);
+            System.err.printf("cache hits=%d misses=%d hit ratio=%.1f%%%n", hits, misses, hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses));
+        }
+    }
+    // Runs clients threads for durationNanos; thread i leaves its latencies in latencies[i] and its request count in the result
+    static int[] run(HttpClient client, String base, int clients, long durationNanos, int writePercent, long[][] latencies, AtomicLong failures) throws InterruptedException 
+    {
+        int[] counts = new int[clients];
+        Thread[] threads = new Thread[clients];
+        long deadline = System.nanoTime() + durationNanos;
+        for (int i = 0; i < clients; i++) 
+        {
+            int id = i;
+            threads[i] = new Thread(() -> 
+            {
+                Random random = new Random(id);
+                long[] mine = new long[1 << 16];
+                int count = 0;
+                while (System.nanoTime() < deadline) 
+                {
+                    HttpRequest request = request(base, random, writePercent);
+                    long start = System.nanoTime();
+                    try 
+                    {
+                        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() != 200) 
+                        {
+                            failures.incrementAndGet();
+                        }
+                    } 
+                    catch (IOException e) 
+                    {
+                        failures.incrementAndGet();
+                    }
+                    catch (InterruptedException e) 
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    if (count == mine.length) 
+                    {
+                        mine = Arrays.copyOf(mine, count * 2);
+                    }
+                    mine[count++] = System.nanoTime() - start;
+                }
+                counts[id] = count;
+                latencies[id] = mine;
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) 
+        {
+            thread.join();
+        }
+        return counts;
+    }
+    // Mostly dashboard-style queries over a small set of keys, so repeats hit the cache between writes
+    static HttpRequest request(String base, Random random, int writePercent) 
+    {
+        if (random.nextInt(100) < writePercent) 
+        {
+            String form = "category=" + SyntheticLedger.category(random.nextInt(CATEGORIES)) + "&amount=12.50&date=" + SyntheticLedger.date(random.nextInt(SPAN_DAYS));
+            return HttpRequest.newBuilder(URI.create(base + "/expenses")).header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(form)).build();
+        }
+        String path;
+        switch (random.nextInt(6)) 
+        {
+            case 0:
+                path = "/total";
+                break;
+            case 1:
+                path = "/categories";
+                break;
+            case 2:
+                path = "/monthly?year=" + (2020 + random.nextInt(5)) + "&month=" + (1 + random.nextInt(12));
+                break;
+            case 3:
+                path = "/yearly?year=" + (2020 + random.nextInt(5));
+                break;
+            case 4:
+                path = "/custom?start=2021-01-01&end=2021-06-30&category=" + SyntheticLedger.category(random.nextInt(CATEGORIES));
+                break;
+            default:
+                path = "/largest?k=10&start=2022-01-01&end=2022-12-31";
+                break;
+        }
+        return HttpRequest.newBuilder(URI.create(base + path)).GET().build();
+    }
+    static double percentile(long[] sorted, int percent) 
+    {
+        if (sorted.length == 0) 
+        {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * percent / 100))] / 1e6;
+    }
+}
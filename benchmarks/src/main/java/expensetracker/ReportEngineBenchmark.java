@@ -0,0 +1,45 @@
+package expensetracker;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Range summaries through the report engine, sequential (threshold 2147483647) against split across the
+// common fork-join pool. Pool size follows the host; -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=N pins it
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportEngineBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Engine
+    {
+        @Param({"2147483647", "65536"})
+        public int parallelThreshold;
+        @Setup(Level.Trial)
+        public void setUp(LedgerState state)
+        {
+            state.tracker.setParallelThreshold(parallelThreshold);
+        }
+    }
+    // A quarter of the span, scanned through the day column
+    @Benchmark
+    public PersonalExpenseTracker.ReportEngine.Summary summarizeQuarterOfSpan(LedgerState state, Engine engine)
+    {
+        int startOffset = state.random.nextInt(Math.max(state.spanDays * 3 / 4, 1));
+        return state.tracker.summarize(SyntheticLedger.date(startOffset), SyntheticLedger.date(startOffset + state.spanDays / 4));
+    }
+    @Benchmark
+    public PersonalExpenseTracker.ReportEngine.Summary summarizeAll(LedgerState state, Engine engine)
+    {
+        return state.tracker.summarize(SyntheticLedger.date(0), SyntheticLedger.date(state.spanDays - 1));
+    }
+    // One category over a month, visited through the date index
+    @Benchmark
+    public PersonalExpenseTracker.ReportEngine.Summary summarizeCategoryMonth(LedgerState state, Engine engine)
+    {
+        int startOffset = state.random.nextInt(Math.max(state.spanDays - 30, 1));
+        return state.tracker.summarize(SyntheticLedger.date(startOffset), SyntheticLedger.date(startOffset + 29), state.randomCategory());
+    }
+}
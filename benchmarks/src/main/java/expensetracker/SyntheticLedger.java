@@ -0,0 +1,85 @@
+package expensetracker;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+// Generates reproducible CSV ledgers in the format written by ExpenseTracker.saveToFile
+final class SyntheticLedger 
+{
+    static final LocalDate FIRST_DAY = LocalDate.of(2020, 1, 1);
+    static final PersonalExpenseTracker.ExpenseType[] TYPES = PersonalExpenseTracker.ExpenseType.values();
+    // Foreign rows alternate between a two-decimal and a zero-decimal currency
+    static final String[] FOREIGN = {"EUR", "JPY"};
+    private SyntheticLedger() 
+    {
+    }
+    static String category(int id) 
+    {
+        return "Category" + id;
+    }
+    static String date(int dayOffset) 
+    {
+        return FIRST_DAY.plusDays(dayOffset).toString();
+    }
+    static double amount(Random random) 
+    {
+        // Cents precision between 0.01 and 500.00
+        return (1 + random.nextInt(50_000)) / 100.0;
+    }
+    static File write(int rows, int categories, int spanDays, long seed) throws IOException 
+    {
+        return write(rows, categories, spanDays, 0, seed);
+    }
+    // foreignPercent of the rows are in FOREIGN currencies instead of USD
+    static File write(int rows, int categories, int spanDays, int foreignPercent, long seed) throws IOException 
+    {
+        File file = File.createTempFile("ledger-" + rows + "-", ".csv");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        String timestamp = LocalDateTime.of(2024, 1, 1, 12, 0).toString();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) 
+        {
+            writer.write("Monthly Limit: 1.0E12\n");
+            for (int i = 0; i < rows; i++) 
+            {
+                String currency = random.nextInt(100) < foreignPercent ? FOREIGN[i & 1] : "USD";
+                writer.write(category(random.nextInt(categories)));
+                writer.write(',');
+                writer.write(currency.equals("JPY") ? Integer.toString(1 + random.nextInt(50_000)) : Double.toString(amount(random)));
+                writer.write(',');
+                writer.write(date(random.nextInt(spanDays)));
+                writer.write(',');
+                writer.write(TYPES[random.nextInt(TYPES.length)].name());
+                writer.write(',');
+                writer.write(timestamp);
+                writer.write(',');
+                writer.write(currency);
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+    // A rate per FOREIGN currency every rateIntervalDays across the span, as loadExchangeRates reads them
+    static File writeRates(int spanDays, int rateIntervalDays, long seed) throws IOException 
+    {
+        File file = File.createTempFile("rates-", ".csv");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) 
+        {
+            for (int day = 0; day < spanDays; day += rateIntervalDays) 
+            {
+                writer.write("EUR," + date(day) + "," + (1.0 + random.nextInt(2_000) / 10_000.0) + "\n");
+                writer.write("JPY," + date(day) + "," + (0.006 + random.nextInt(2_000) / 1_000_000.0) + "\n");
+            }
+        }
+        return file;
+    }
+    // Tracker output would dominate every measurement, so benchmarks run with stdout discarded
+    static void muteConsole() 
+    {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+}
@@ -0,0 +1,95 @@
+package expensetracker;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Throughput and latency of the in-memory ExpenseTracker operations
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrackerBenchmark 
+{
+    @Benchmark
+    public void addExpense(LedgerState state) 
+    {
+        state.tracker.addExpense(state.randomCategory(), 12.34, state.randomDate(), PersonalExpenseTracker.ExpenseType.VARIABLE);
+    }
+    @Benchmark
+    public void deductExpense(LedgerState state) 
+    {
+        state.tracker.deductExpense(state.randomCategory(), 0.01);
+    }
+    // Refund-sized deductions: the covering row can sit deep in the category and is often emptied.
+    // Batched single shots, since the ledger drains as it runs
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = 1000)
+    @Measurement(iterations = 5, batchSize = 1000)
+    public void deductLargeExpense(LedgerState state) 
+    {
+        state.tracker.deductExpense(state.randomCategory(), SyntheticLedger.amount(state.random));
+    }
+    @Benchmark
+    public void filterExpensesByCategory(LedgerState state) 
+    {
+        state.tracker.filterExpensesByCategory(state.randomCategory());
+    }
+    // Renders every row to the (discarded) console
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 5)
+    public void displayAllExpenses(LedgerState state) 
+    {
+        state.tracker.displayAllExpenses();
+    }
+    @Benchmark
+    public void generateCustomReport(LedgerState state) 
+    {
+        String start = state.randomDate();
+        String end = SyntheticLedger.date(Math.min(state.spanDays - 1, (int) (java.time.LocalDate.parse(start).toEpochDay() - SyntheticLedger.FIRST_DAY.toEpochDay()) + 30));
+        state.tracker.generateCustomReport(start, end);
+    }
+    @Benchmark
+    public void generateMonthlyReport(LedgerState state) 
+    {
+        state.tracker.generateMonthlyReport(2022, 6);
+    }
+    @Benchmark
+    public void generateYearlyReport(LedgerState state) 
+    {
+        state.tracker.generateYearlyReport(2022);
+    }
+    // Re-converts every row and rebuilds the indexes; with foreignPercent=0 the table only has identity rates
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 5)
+    public void loadExchangeRates(LedgerState state) 
+    {
+        state.tracker.loadExchangeRates(state.rates.getPath());
+    }
+    // Switching views is free; the cost is listing through the maintained date order
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 5)
+    public void displayExpensesByDate(LedgerState state) 
+    {
+        state.tracker.sortExpensesByDate();
+        state.tracker.displayAllExpenses();
+        state.tracker.sortExpensesByAmount();
+    }
+    // Top 20 of a 30-day window (heap over the window) and of the whole ledger (walk down the amount order)
+    @Benchmark
+    public List<PersonalExpenseTracker.Expense> largestExpensesInMonth(LedgerState state) 
+    {
+        int startOffset = state.random.nextInt(Math.max(state.spanDays - 30, 1));
+        return state.tracker.largestExpenses(20, SyntheticLedger.date(startOffset), SyntheticLedger.date(startOffset + 29));
+    }
+    @Benchmark
+    public List<PersonalExpenseTracker.Expense> largestExpensesOverall(LedgerState state) 
+    {
+        return state.tracker.largestExpenses(20, SyntheticLedger.date(0), SyntheticLedger.date(state.spanDays - 1));
+    }
+}